@@ -18,15 +18,13 @@ package brooklyn.entity.waratek;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import brooklyn.entity.java.UsesJmx;
 import brooklyn.entity.java.VanillaJavaAppImpl;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualContainer;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
+import brooklyn.entity.waratek.cloudvm.JmxConnectionRegistry;
 import brooklyn.entity.waratek.cloudvm.WaratekUtils;
-import brooklyn.event.feed.jmx.JmxFeed;
-import brooklyn.event.feed.jmx.JmxHelper;
+import brooklyn.event.feed.function.FunctionFeed;
 import brooklyn.location.waratek.WaratekContainerLocation;
-import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.time.Duration;
 
 import com.google.common.base.Predicates;
@@ -36,8 +34,8 @@ public class WaratekJavaApplicationImpl extends VanillaJavaAppImpl implements Wa
 
     private static final Logger log = LoggerFactory.getLogger(WaratekJavaApplicationImpl.class);
 
-    private JmxHelper jmxHelper;
-    private JmxFeed jmxMxBeanFeed;
+    private JmxConnectionRegistry.Handle jmx;
+    private FunctionFeed jmxMxBeanFeed;
 
     @Override
     public void init() {
@@ -51,13 +49,8 @@ public class WaratekJavaApplicationImpl extends VanillaJavaAppImpl implements Wa
 
     @Override
     protected void connectSensors() {
-        jmxHelper = new JmxHelper(getJavaVirtualMachine().getAttribute(UsesJmx.JMX_URL));
-        try {
-            jmxHelper.connect();
-        } catch (Exception e) {
-            throw Exceptions.propagate(e);
-        }
-        jmxMxBeanFeed = WaratekUtils.connectMXBeanSensors(jmxHelper, this, Duration.FIVE_SECONDS);
+        jmx = getJavaVirtualMachine().acquireJmxConnection();
+        jmxMxBeanFeed = WaratekUtils.connectMXBeanSensors(jmx, this, Duration.FIVE_SECONDS);
         WaratekUtils.connectEnrichers(this);
         connectServiceUpIsRunning();
     }
@@ -75,7 +68,8 @@ public class WaratekJavaApplicationImpl extends VanillaJavaAppImpl implements Wa
     public void disconnectSensors() {
         disconnectServiceUpIsRunning();
         if (jmxMxBeanFeed != null) jmxMxBeanFeed.stop();
-        if (jmxHelper != null) jmxHelper.disconnect();
+        if (jmx != null) jmx.release();
+        jmx = null;
     }
 
     @Override
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.ResourceUtils;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.os.Os;
+import brooklyn.util.stream.Streams;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Content-addressed cache of downloaded artifacts on the management node.
+ * <p>
+ * Artifacts are stored under the cache directory by version, and are fetched once no
+ * matter how many JVMs are installing them. The SHA-256 checksum of each artifact is
+ * verified against the expected value, if given, and recorded so that hosts can tell
+ * whether their copy is the same.
+ */
+public class ArtifactCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArtifactCache.class);
+
+    /* A fixed set of locks, so fetches of the same artifact are serialised without a lock per file. */
+    private static final Striped<Lock> LOCKS = Striped.lock(16);
+
+    /** A cached artifact and its checksum. */
+    public static class Artifact {
+        private final File file;
+        private final String checksum;
+
+        public Artifact(File file, String checksum) {
+            this.file = file;
+            this.checksum = checksum;
+        }
+
+        public File getFile() { return file; }
+
+        public String getChecksum() { return checksum; }
+    }
+
+    /**
+     * Return the cached artifact, downloading it from the first working URL if needed.
+     *
+     * @param expectedChecksum the SHA-256 checksum to verify, or {@code null} to accept any content
+     * @throws IllegalStateException if the artifact could not be downloaded or does not match the checksum
+     */
+    public static Artifact get(String cacheDir, String version, String filename, List<String> urls, String expectedChecksum) {
+        File dir = new File(Os.tidyPath(Os.mergePaths(cacheDir, version)));
+        File file = new File(dir, filename);
+        File checksumFile = new File(dir, filename + ".sha256");
+        String key = file.getAbsolutePath();
+
+        Lock lock = LOCKS.get(key);
+        lock.lock();
+        try {
+            if (file.exists() && checksumFile.exists()) {
+                String checksum = Files.toString(checksumFile, Charsets.UTF_8).trim();
+                if (expectedChecksum == null || expectedChecksum.equalsIgnoreCase(checksum)) {
+                    if (LOG.isDebugEnabled()) LOG.debug("Using cached artifact {} ({})", file, checksum);
+                    return new Artifact(file, checksum);
+                }
+                LOG.warn("Cached artifact {} has checksum {}, expected {}; downloading again", new Object[] { file, checksum, expectedChecksum });
+            }
+
+            dir.mkdirs();
+            File download = new File(dir, filename + ".part");
+            fetch(urls, download);
+            String checksum = Files.hash(download, Hashing.sha256()).toString();
+            if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(checksum)) {
+                download.delete();
+                throw new IllegalStateException(String.format("Downloaded %s has checksum %s, expected %s", filename, checksum, expectedChecksum));
+            }
+            Files.move(download, file);
+            Files.write(checksum, checksumFile, Charsets.UTF_8);
+            LOG.info("Cached artifact {} ({})", file, checksum);
+            return new Artifact(file, checksum);
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void fetch(List<String> urls, File target) {
+        Exception last = null;
+        for (String url : urls) {
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                if (LOG.isDebugEnabled()) LOG.debug("Downloading {} to {}", url, target);
+                in = ResourceUtils.create(ArtifactCache.class).getResourceFromUrl(url);
+                out = new FileOutputStream(target);
+                ByteStreams.copy(in, out);
+                return;
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                if (LOG.isDebugEnabled()) LOG.debug("Failed to download {}: {}", url, e.getMessage());
+                last = e;
+            } finally {
+                Streams.closeQuietly(in);
+                Streams.closeQuietly(out);
+            }
+        }
+        throw new IllegalStateException("Could not download from any of " + urls, last);
+    }
+
+}
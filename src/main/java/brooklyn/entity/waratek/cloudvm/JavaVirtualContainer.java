@@ -30,6 +30,7 @@ import brooklyn.event.basic.Sensors;
 import brooklyn.location.dynamic.LocationOwner;
 import brooklyn.location.waratek.WaratekContainerLocation;
 import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
 
 @ImplementedBy(JavaVirtualContainerImpl.class)
 public interface JavaVirtualContainer extends SoftwareProcess, HasShortName, LocationOwner<WaratekContainerLocation, JavaVirtualContainer> {
@@ -48,6 +49,12 @@ public interface JavaVirtualContainer extends SoftwareProcess, HasShortName, Loc
     @SetFromFlag("jvm")
     ConfigKey<JavaVirtualMachine> JVM = ConfigKeys.newConfigKey(JavaVirtualMachine.class, "waratek.jvm", "The parent JVM");
 
+    @SetFromFlag("shutdownTimeout")
+    ConfigKey<Duration> SHUTDOWN_TIMEOUT = ConfigKeys.newConfigKey(Duration.class, "waratek.jvc.shutdownTimeout", "Time to wait for the JVC to reach the shut off state", Duration.ONE_MINUTE);
+
+    @SetFromFlag("statusMaxAge")
+    ConfigKey<Duration> STATUS_MAX_AGE = ConfigKeys.newConfigKey(Duration.class, "waratek.jvc.statusMaxAge", "Age of a cached JVC status beyond which it is read again over JMX", Duration.seconds(15));
+
     ConfigKey<String> JVC_NAME_FORMAT = ConfigKeys.newStringConfigKey("waratek.jvc.nameFormat", "Format for generating JVC names", DEFAULT_JVC_NAME_FORMAT);
     AttributeSensor<String> JVC_NAME = Sensors.newStringSensor("waratek.jvc.name", "The name of the JVC");
 
@@ -17,6 +17,7 @@ package brooklyn.entity.waratek.cloudvm;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.ObjectInstance;
@@ -30,8 +31,7 @@ import brooklyn.entity.basic.Attributes;
 import brooklyn.entity.basic.Lifecycle;
 import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.basic.SoftwareProcessImpl;
-import brooklyn.entity.java.UsesJmx;
-import brooklyn.event.feed.jmx.JmxFeed;
+import brooklyn.event.feed.function.FunctionFeed;
 import brooklyn.event.feed.jmx.JmxHelper;
 import brooklyn.location.Location;
 import brooklyn.location.LocationSpec;
@@ -42,17 +42,17 @@ import brooklyn.management.LocationManager;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.os.Os;
+import brooklyn.util.repeat.Repeater;
 import brooklyn.util.text.Strings;
 import brooklyn.util.time.Duration;
-import brooklyn.util.time.Time;
 
 public class JavaVirtualContainerImpl extends SoftwareProcessImpl implements JavaVirtualContainer {
 
     private static final Logger log = LoggerFactory.getLogger(JavaVirtualContainerImpl.class);
     private static final AtomicInteger counter = new AtomicInteger(0);
 
-    private JmxHelper jmxHelper;
-    private JmxFeed jmxMxBeanFeed;
+    private JmxConnectionRegistry.Handle jmx;
+    private FunctionFeed jmxMxBeanFeed;
 
     @Override
     public void init() {
@@ -74,13 +74,8 @@ public class JavaVirtualContainerImpl extends SoftwareProcessImpl implements Jav
     @Override
     protected void connectSensors() {
         super.connectSensors();
-        jmxHelper = new JmxHelper(getJavaVirtualMachine().getAttribute(UsesJmx.JMX_URL));
-        try {
-            jmxHelper.connect();
-        } catch (Exception e) {
-            throw Exceptions.propagate(e);
-        }
-        jmxMxBeanFeed = WaratekUtils.connectMXBeanSensors(jmxHelper, this, Duration.FIVE_SECONDS);
+        jmx = getJavaVirtualMachine().acquireJmxConnection();
+        jmxMxBeanFeed = WaratekUtils.connectMXBeanSensors(jmx, this, Duration.FIVE_SECONDS);
         WaratekUtils.connectEnrichers(this);
         connectServiceUpIsRunning();
     }
@@ -133,7 +128,8 @@ public class JavaVirtualContainerImpl extends SoftwareProcessImpl implements Jav
     public void disconnectSensors() {
         disconnectServiceUpIsRunning();
         if (jmxMxBeanFeed != null) jmxMxBeanFeed.stop();
-        if (jmxHelper != null) jmxHelper.disconnect();
+        if (jmx != null) jmx.release();
+        jmx = null;
         super.disconnectSensors();
     }
 
@@ -142,31 +138,75 @@ public class JavaVirtualContainerImpl extends SoftwareProcessImpl implements Jav
         String jvc = getAttribute(JavaVirtualContainer.JVC_NAME);
         log.info("Shut-Down {}", jvc);
 
+        JmxConnectionRegistry.Handle connection = getJavaVirtualMachine().acquireJmxConnection();
         try {
-            ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "VirtualContainer")));
-            String status = (String) jmxHelper.getAttribute(object.getObjectName(), "Status");
+            JmxHelper helper = connection.getHelper();
+            ObjectInstance object = helper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "VirtualContainer")));
+            String status = (String) helper.getAttribute(object.getObjectName(), "Status");
             if (!JavaVirtualContainer.STATUS_SHUT_OFF.equals(status)) {
-                jmxHelper.operation(object.getObjectName(), "shutdownContainer");
-                do {
-                    Time.sleep(Duration.seconds(0.1d));
-                    status = (String) jmxHelper.getAttribute(object.getObjectName(), "Status");
-                } while (!JavaVirtualContainer.STATUS_SHUT_OFF.equals(status));
+                helper.operation(object.getObjectName(), "shutdownContainer");
+                Duration timeout = getConfig(SHUTDOWN_TIMEOUT);
+                JvcStatusWatcher watcher = getJavaVirtualMachine().getJvcStatusWatcher();
+                boolean shutOff;
+                if (watcher != null && !watcher.isClosed()) {
+                    shutOff = watcher.waitForStatus(jvc, JavaVirtualContainer.STATUS_SHUT_OFF, timeout);
+                } else {
+                    shutOff = waitForStatus(helper, object.getObjectName(), JavaVirtualContainer.STATUS_SHUT_OFF, timeout);
+                }
+                if (!shutOff) {
+                    throw new IllegalStateException(String.format("JVC %s did not shut down within %s", jvc, timeout));
+                }
             }
+            updateCachedStatus(jvc, JavaVirtualContainer.STATUS_SHUT_OFF);
         } catch (Exception e) {
+            connection.failed(e);
             throw Exceptions.propagate(e);
+        } finally {
+            connection.release();
         }
     }
 
+    /**
+     * Poll the JVC status, for when the JVM has no status watcher because its sensors are not connected.
+     */
+    private boolean waitForStatus(final JmxHelper helper, final ObjectName objectName, final String status, Duration timeout) {
+        return Repeater.create("Wait for JVC status " + status)
+                .every(Duration.millis(500))
+                .until(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return status.equals(helper.getAttribute(objectName, "Status"));
+                    }
+                })
+                .limitTimeTo(timeout)
+                .run();
+    }
+
+    /**
+     * Update the JVM's cached status for the JVC after changing it, or forget the cached
+     * status if {@code null} so that it is read again.
+     */
+    void updateCachedStatus(String jvc, String status) {
+        JvcMetricsCollector collector = getJavaVirtualMachine().getJvcMetricsCollector();
+        if (collector != null) collector.recordStatus(jvc, status);
+    }
+
     @Override
     public void pause() {
         String jvc = getAttribute(JavaVirtualContainer.JVC_NAME);
         log.info("Pausing {}", jvc);
 
+        JmxConnectionRegistry.Handle connection = getJavaVirtualMachine().acquireJmxConnection();
         try {
-            ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "VirtualContainer")));
-            jmxHelper.operation(object.getObjectName(), "suspendContainer");
+            JmxHelper helper = connection.getHelper();
+            ObjectInstance object = helper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "VirtualContainer")));
+            helper.operation(object.getObjectName(), "suspendContainer");
+            updateCachedStatus(jvc, JavaVirtualContainer.STATUS_PAUSED);
         } catch (Exception e) {
+            connection.failed(e);
             throw Exceptions.propagate(e);
+        } finally {
+            connection.release();
         }
     }
 
@@ -175,11 +215,17 @@ public class JavaVirtualContainerImpl extends SoftwareProcessImpl implements Jav
         String jvc = getAttribute(JavaVirtualContainer.JVC_NAME);
         log.info("Resume {}", jvc);
 
+        JmxConnectionRegistry.Handle connection = getJavaVirtualMachine().acquireJmxConnection();
         try {
-            ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "VirtualContainer")));
-            jmxHelper.operation(object.getObjectName(), "resumeContainer");
+            JmxHelper helper = connection.getHelper();
+            ObjectInstance object = helper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "VirtualContainer")));
+            helper.operation(object.getObjectName(), "resumeContainer");
+            updateCachedStatus(jvc, null);
         } catch (Exception e) {
+            connection.failed(e);
             throw Exceptions.propagate(e);
+        } finally {
+            connection.release();
         }
     }
 
@@ -188,18 +234,23 @@ public class JavaVirtualContainerImpl extends SoftwareProcessImpl implements Jav
         String jvc = getAttribute(JavaVirtualContainer.JVC_NAME);
         log.info("Allocate {} to {}", Strings.makeSizeString(size), jvc);
 
+        JmxConnectionRegistry.Handle connection = getJavaVirtualMachine().acquireJmxConnection();
         try {
-            ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "Memory")));
-            Long oldSize = (Long) jmxHelper.getAttribute(object.getObjectName(), "MaximumHeapMemorySize");
-            jmxHelper.setAttribute(object.getObjectName(), "MaximumHeapMemorySize", size);
-            Long newSize = (Long) jmxHelper.getAttribute(object.getObjectName(), "MaximumHeapMemorySize");
+            JmxHelper helper = connection.getHelper();
+            ObjectInstance object = helper.findMBean(ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvc, "Memory")));
+            Long oldSize = (Long) helper.getAttribute(object.getObjectName(), "MaximumHeapMemorySize");
+            helper.setAttribute(object.getObjectName(), "MaximumHeapMemorySize", size);
+            Long newSize = (Long) helper.getAttribute(object.getObjectName(), "MaximumHeapMemorySize");
             if (log.isDebugEnabled()) {
                 log.debug("Changed max heap from {} to {}", Strings.makeSizeString(oldSize), Strings.makeSizeString(newSize));
             }
             setAttribute(MAX_HEAP_SIZE, newSize);
             return oldSize;
         } catch (Exception e) {
+            connection.failed(e);
             throw Exceptions.propagate(e);
+        } finally {
+            connection.release();
         }
     }
 
@@ -8,7 +8,6 @@ import javax.management.ObjectName;
 
 import brooklyn.entity.basic.AbstractSoftwareProcessSshDriver;
 import brooklyn.entity.basic.Entities;
-import brooklyn.entity.java.UsesJmx;
 import brooklyn.event.feed.jmx.JmxHelper;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.waratek.WaratekContainerLocation;
@@ -21,7 +20,7 @@ import brooklyn.util.text.ByteSizeStrings;
  */
 public class JavaVirtualContainerSshDriver extends AbstractSoftwareProcessSshDriver implements JavaVirtualContainerDriver {
 
-    private volatile JmxHelper jmxHelper;
+    private JmxConnectionRegistry.Handle jmx;
 
     public JavaVirtualContainerSshDriver(JavaVirtualContainerImpl entity, SshMachineLocation machine) {
         super(entity, machine);
@@ -30,12 +29,23 @@ public class JavaVirtualContainerSshDriver extends AbstractSoftwareProcessSshDri
         JavaVirtualMachine jvm = getEntity().getConfig(JavaVirtualContainer.JVM);
         Entities.waitForServiceUp(jvm);
 
-        jmxHelper = new JmxHelper(jvm.getAttribute(UsesJmx.JMX_URL));
-        try {
-            jmxHelper.connect();
-        } catch (Exception e) {
-            throw Exceptions.propagate(e);
+        jmx = jvm.acquireJmxConnection();
+    }
+
+    private JavaVirtualMachine getJavaVirtualMachine() {
+        return getEntity().getConfig(JavaVirtualContainer.JVM);
+    }
+
+    /** The shared JMX connection, acquired again if the driver is re-used after {@link #stop()}. */
+    private synchronized JmxConnectionRegistry.Handle getJmx() {
+        if (jmx == null) {
+            jmx = getJavaVirtualMachine().acquireJmxConnection();
         }
+        return jmx;
+    }
+
+    private JmxHelper getJmxHelper() {
+        return getJmx().getHelper();
     }
 
     /** Does nothing; we are using the Waratek JVM instead. */
@@ -52,96 +62,110 @@ public class JavaVirtualContainerSshDriver extends AbstractSoftwareProcessSshDri
     @Override
     public void customize() {
         try {
-            getMachine().acquireMutex("exec", "customize");
+            getMachine().acquireMutex(WaratekContainerLocation.getJvcMutexId(getJvcName()), "customize");
 
             String jvc = getJvcName();
             if (log.isDebugEnabled()) log.debug("Creating {}", jvc);
 
             String command = String.format("java -cp %s com.waratek.Brooklyn %s", Os.mergePaths(getInstallDir(), "brooklyn-waratek-container.jar"), jvc);
             try {
-                ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(VIRTUAL_MACHINE_MX_BEAN));
-                jmxHelper.operation(object.getObjectName(), "defineContainer", jvc, command, getInstallDir());
+                JmxHelper helper = getJmxHelper();
+                ObjectInstance object = helper.findMBean(ObjectName.getInstance(VIRTUAL_MACHINE_MX_BEAN));
+                helper.operation(object.getObjectName(), "defineContainer", jvc, command, getInstallDir());
             } catch (Exception e) {
+                getJmx().failed(e);
                 throw Exceptions.propagate(e);
             }
         } catch (InterruptedException ie) {
             throw Exceptions.propagate(ie);
         } finally {
-            getMachine().releaseMutex("exec");
+            getMachine().releaseMutex(WaratekContainerLocation.getJvcMutexId(getJvcName()));
         }
     }
 
     @Override
     public void launch() {
         try {
-            getMachine().acquireMutex("exec", "launch");
+            getMachine().acquireMutex(WaratekContainerLocation.getJvcMutexId(getJvcName()), "launch");
 
             String jvc = getJvcName();
             if (log.isDebugEnabled()) log.debug("Starting {}", jvc);
 
             try {
-                ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(VIRTUAL_MACHINE_MX_BEAN));
-                jmxHelper.operation(object.getObjectName(), "startContainer", jvc);
+                JmxHelper helper = getJmxHelper();
+                ObjectInstance object = helper.findMBean(ObjectName.getInstance(VIRTUAL_MACHINE_MX_BEAN));
+                helper.operation(object.getObjectName(), "startContainer", jvc);
+                getEntity().updateCachedStatus(jvc, null);
             } catch (Exception e) {
+                getJmx().failed(e);
                 throw Exceptions.propagate(e);
             }
         } catch (InterruptedException ie) {
             throw Exceptions.propagate(ie);
         } finally {
-            getMachine().releaseMutex("exec");
+            getMachine().releaseMutex(WaratekContainerLocation.getJvcMutexId(getJvcName()));
         }
     }
 
+    /**
+     * Answered from the JVM's cached JMX sweep while it is fresh, otherwise reads the
+     * JVC status over JMX, without taking the JVC mutex.
+     */
     @Override
     public boolean isRunning() {
-        try {
-            getMachine().acquireMutex("exec", "isRunning");
+        String jvc = getJvcName();
+        if (log.isTraceEnabled()) log.trace("Checking {}", jvc);
 
-            String jvc = getJvcName();
-            if (log.isTraceEnabled()) log.trace("Checking {}", jvc);
-
-            try {
-                ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(String.format(VIRTUAL_CONTAINER_MX_BEAN, jvc)));
-                if (object != null) {
-                    String status = (String) jmxHelper.getAttribute(object.getObjectName(), "Status");
-                    return status != null; // As long as a status is returned, OK
-                } else {
-                    return false;
-                }
-            } catch (Exception e) {
-                throw Exceptions.propagate(e);
+        JvcMetricsCollector collector = getJavaVirtualMachine().getJvcMetricsCollector();
+        if (collector != null) {
+            // As long as a status is returned, OK
+            return collector.getStatus(jvc, getEntity().getConfig(JavaVirtualContainer.STATUS_MAX_AGE)) != null;
+        }
+        try {
+            JmxHelper helper = getJmxHelper();
+            ObjectInstance object = helper.findMBean(ObjectName.getInstance(String.format(VIRTUAL_CONTAINER_MX_BEAN, jvc)));
+            if (object != null) {
+                String status = (String) helper.getAttribute(object.getObjectName(), "Status");
+                return status != null; // As long as a status is returned, OK
+            } else {
+                return false;
             }
-        } catch (InterruptedException ie) {
-            throw Exceptions.propagate(ie);
-        } finally {
-            getMachine().releaseMutex("exec");
+        } catch (Exception e) {
+            getJmx().failed(e);
+            throw Exceptions.propagate(e);
         }
     }
 
     @Override
     public void stop() {
         try {
-            getMachine().acquireMutex("exec", "stop");
+            getMachine().acquireMutex(WaratekContainerLocation.getJvcMutexId(getJvcName()), "stop");
 
             String jvc = getJvcName();
             if (log.isDebugEnabled()) log.debug("Stopping {}", jvc);
 
             try {
-                ObjectInstance object = jmxHelper.findMBean(ObjectName.getInstance(String.format(VIRTUAL_CONTAINER_MX_BEAN, jvc)));
+                JmxHelper helper = getJmxHelper();
+                ObjectInstance object = helper.findMBean(ObjectName.getInstance(String.format(VIRTUAL_CONTAINER_MX_BEAN, jvc)));
                 if (object != null) {
                     getEntity().shutDown();
-                    jmxHelper.operation(object.getObjectName(), "undefineContainer");
+                    helper.operation(object.getObjectName(), "undefineContainer");
+                    getEntity().updateCachedStatus(jvc, null);
                     WaratekContainerLocation container = getEntity().getDynamicLocation();
                     if (container != null) container.setEntity(null);
                 }
             } catch (Exception e) {
+                getJmx().failed(e);
                 throw Exceptions.propagate(e);
             }
-            if (jmxHelper != null) jmxHelper.disconnect();
+            synchronized (this) {
+                if (jmx != null) jmx.release();
+                jmx = null;
+            }
         } catch (InterruptedException ie) {
             throw Exceptions.propagate(ie);
         } finally {
-            getMachine().releaseMutex("exec");
+            getMachine().releaseMutex(WaratekContainerLocation.getJvcMutexId(getJvcName()));
         }
     }
 
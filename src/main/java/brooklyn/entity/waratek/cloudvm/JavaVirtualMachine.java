@@ -39,6 +39,9 @@ import brooklyn.location.waratek.WaratekMachineLocation;
 import brooklyn.util.flags.SetFromFlag;
 import brooklyn.util.time.Duration;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+
 @ImplementedBy(JavaVirtualMachineImpl.class)
 public interface JavaVirtualMachine extends SoftwareProcess, UsesJmx, UsesJavaMXBeans, Resizable, HasShortName, LocationOwner<WaratekMachineLocation, JavaVirtualMachine> {
 
@@ -59,6 +62,15 @@ public interface JavaVirtualMachine extends SoftwareProcess, UsesJmx, UsesJavaMX
             "https://s3-eu-west-1.amazonaws.com/brooklyn-waratek/waratek_release_${version}_package.tar.gz");
 //            "http://download.waratek.com/brooklyn/waratek_release_${version}_package.tar.gz?src=brooklyn");
 
+    @SetFromFlag("downloadChecksum")
+    ConfigKey<String> DOWNLOAD_CHECKSUM = ConfigKeys.newStringConfigKey("waratek.download.sha256", "Expected SHA-256 checksum of the release archive (optional)");
+
+    @SetFromFlag("useArtifactCache")
+    ConfigKey<Boolean> USE_ARTIFACT_CACHE = ConfigKeys.newBooleanConfigKey("waratek.download.cache.enable", "Download the release archive once to the management node and copy it to each host, falling back to downloading on the host", true);
+
+    @SetFromFlag("artifactCacheDir")
+    ConfigKey<String> ARTIFACT_CACHE_DIR = ConfigKeys.newStringConfigKey("waratek.download.cache.dir", "Management node directory for cached release archives", "~/.brooklyn/waratek/cache");
+
     @SetFromFlag("debug")
     ConfigKey<Boolean> DEBUG = ConfigKeys.newBooleanConfigKey("waratek.debug", "Enable debug options", false);
 
@@ -92,9 +104,23 @@ public interface JavaVirtualMachine extends SoftwareProcess, UsesJmx, UsesJavaMX
     PortAttributeSensorAndConfigKey HTTP_PORT = new PortAttributeSensorAndConfigKey(
             "waratek.admin.http.port", "Port to use for JVM administration over HTTP", PortRanges.fromString("7777+"));
 
+    @SetFromFlag("javaOptsVariables")
+    ConfigKey<List<String>> JAVA_OPTS_VARIABLES = ConfigKeys.newConfigKey(new TypeToken<List<String>>() { },
+            "waratek.javaOpts.variables", "Environment variables holding JVM options, to which the Waratek options are added; can be set on the deployed entity",
+            ImmutableList.of("ACTIVEMQ_OPTS", "QPID_OPTS", "JAVA_OPTIONS", "JVM_OPTS", "KAFKA_JMX_OPTS", JAVA_OPTS_VAR));
+
+    @SetFromFlag("maxConcurrentExec")
+    ConfigKey<Integer> MAX_CONCURRENT_EXEC = ConfigKeys.newIntegerConfigKey("waratek.jvm.exec.maxConcurrent", "Maximum number of concurrent SSH commands for the JVCs on a host, shared by all the JVMs on it", 4);
+
     @SetFromFlag("maxSize")
     ConfigKey<Integer> JVC_CLUSTER_MAX_SIZE = WaratekInfrastructure.JVC_CLUSTER_MAX_SIZE;
 
+    @SetFromFlag("warmPoolMinIdle")
+    ConfigKey<Integer> JVC_POOL_MIN_IDLE = ConfigKeys.newIntegerConfigKey("waratek.jvc.warmPool.minIdle", "Minimum number of stopped JVCs to keep ready for deployment", 0);
+
+    @SetFromFlag("warmPoolMaxIdle")
+    ConfigKey<Integer> JVC_POOL_MAX_IDLE = ConfigKeys.newIntegerConfigKey("waratek.jvc.warmPool.maxIdle", "Maximum number of stopped JVCs to keep, removing any extras (0 for no limit)", 0);
+
     @SetFromFlag("jvcSpec")
     BasicAttributeSensorAndConfigKey<EntitySpec> JVC_SPEC = new BasicAttributeSensorAndConfigKey<EntitySpec>(
             EntitySpec.class, "waratek.jvc.spec", "Specification to use when creating child JVCs",
@@ -130,9 +156,42 @@ public interface JavaVirtualMachine extends SoftwareProcess, UsesJmx, UsesJavaMX
     AttributeSensor<Integer> RUNNING_JVCS = Sensors.newIntegerSensor("waratek.jvm.running", "The number of running JVCs in the JVM");
     AttributeSensor<Integer> PAUSED_JVCS = Sensors.newIntegerSensor("waratek.jvm.paused", "The number of paused JVCs in the JVM");
 
+    AttributeSensor<Long> ALLOCATED_HEAP_MEMORY = Sensors.newLongSensor("waratek.jvm.allocatedHeap", "The heap allocated to JVCs with a running entity, excluding those with no limit");
+    AttributeSensor<Integer> UNLIMITED_HEAP_JVCS = Sensors.newIntegerSensor("waratek.jvm.unlimitedHeap", "The number of JVCs with a running entity and no heap limit");
+
+    AttributeSensor<Integer> MONITORED_JVCS = Sensors.newIntegerSensor("waratek.jvm.monitored", "The number of JVCs read by the last metrics sweep");
+
+    AttributeSensor<Long> JVC_POOL_HITS = Sensors.newLongSensor("waratek.jvc.warmPool.hits", "The number of containers obtained from the pool of stopped JVCs");
+    AttributeSensor<Long> JVC_POOL_MISSES = Sensors.newLongSensor("waratek.jvc.warmPool.misses", "The number of containers that required a new JVC");
+
+    /** The stopped JVCs with no running entity, in the order they became available. */
     Iterable<Entity> getAvailableJvcs();
 
+    /**
+     * Claim up to {@code count} stopped JVCs for an entity.
+     * <p>
+     * The running entity is set while the pool is locked, so a JVC cannot be claimed twice.
+     */
+    List<Entity> claimAvailableJvcs(int count, Entity entity);
+
+    /** Remove up to {@code count} stopped JVCs from the pool, before they are removed from the JVM. */
+    List<Entity> takeAvailableJvcs(int count);
+
+    void recordJvcPoolUsage(int hits, int misses);
+
+    Integer getStoppedJvcs();
     Integer getRunningJvcs();
     Integer getPausedJvcs();
 
+    /**
+     * Obtain a handle on the shared JMX connection to this JVM, which must be released when no longer needed.
+     *
+     * @throws IllegalStateException if the JVM sensors are not connected
+     */
+    JmxConnectionRegistry.Handle acquireJmxConnection();
+
+    JvcStatusWatcher getJvcStatusWatcher();
+
+    JvcMetricsCollector getJvcMetricsCollector();
+
 }
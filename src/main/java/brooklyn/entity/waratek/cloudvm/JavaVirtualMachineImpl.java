@@ -18,10 +18,11 @@ package brooklyn.entity.waratek.cloudvm;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jclouds.compute.domain.OsFamily;
 import org.slf4j.Logger;
@@ -29,6 +30,7 @@ import org.slf4j.LoggerFactory;
 
 import brooklyn.enricher.Enrichers;
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.AbstractGroup;
 import brooklyn.entity.basic.Entities;
 import brooklyn.entity.basic.SoftwareProcessImpl;
 import brooklyn.entity.group.Cluster;
@@ -36,6 +38,10 @@ import brooklyn.entity.group.DynamicCluster;
 import brooklyn.entity.java.JavaAppUtils;
 import brooklyn.entity.java.UsesJavaMXBeans;
 import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.trait.Startable;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
 import brooklyn.event.feed.function.FunctionFeed;
 import brooklyn.event.feed.function.FunctionPollConfig;
 import brooklyn.event.feed.jmx.JmxAttributePollConfig;
@@ -43,6 +49,7 @@ import brooklyn.event.feed.jmx.JmxFeed;
 import brooklyn.location.Location;
 import brooklyn.location.LocationDefinition;
 import brooklyn.location.MachineProvisioningLocation;
+import brooklyn.location.NoMachinesAvailableException;
 import brooklyn.location.basic.BasicLocationDefinition;
 import brooklyn.location.basic.Machines;
 import brooklyn.location.basic.SshMachineLocation;
@@ -57,13 +64,18 @@ import brooklyn.policy.ha.ServiceReplacer;
 import brooklyn.policy.ha.ServiceRestarter;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.guava.Maybe;
+import brooklyn.util.task.Tasks;
 import brooklyn.util.time.Duration;
 
 import com.google.common.base.Functions;
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.EnumMultiset;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
 
 public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaVirtualMachine {
 
@@ -76,9 +88,31 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
     private static final AtomicInteger counter = new AtomicInteger(0);
 
     private JmxFeed jmxMxBeanFeed;
-    private FunctionFeed jvcFeed;
+    private FunctionFeed jvcMetricsFeed;
+    private volatile JmxConnectionRegistry jmxConnections;
+    private volatile JvcStatusWatcher statusWatcher;
+    private volatile JvcMetricsCollector metricsCollector;
     private DynamicCluster containers;
 
+    private final AtomicLong poolHits = new AtomicLong(0L);
+    private final AtomicLong poolMisses = new AtomicLong(0L);
+    private final AtomicBoolean poolMaintenance = new AtomicBoolean(false);
+    private final AtomicBoolean poolDirty = new AtomicBoolean(false);
+
+    /** The state of each JVC, used for the JVC counts and the pool of stopped JVCs. */
+    private enum JvcState { STOPPED, RUNNING, PAUSED, OTHER }
+
+    /* The following are guarded by jvcStateLock, and updated from JVC sensor events. */
+
+    private final Object jvcStateLock = new Object[0];
+    private final Map<Entity, JvcState> jvcStates = Maps.newHashMap();
+    private final Multiset<JvcState> jvcStateCounts = EnumMultiset.create(JvcState.class);
+    private final Set<Entity> idleJvcs = Sets.newLinkedHashSet();
+    private final Set<Entity> removingJvcs = Sets.newHashSet();
+    private final Map<Entity, Long> jvcHeapAllocations = Maps.newHashMap();
+    private long allocatedHeap = 0L;
+    private int unlimitedHeapJvcs = 0;
+
     @Override
     public void init() {
         log.info("Starting JVM id {}", getId());
@@ -134,6 +168,59 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
                 .propagating(WaratekAttributes.TOTAL_HEAP_MEMORY, WaratekAttributes.AVERAGE_CPU_USAGE, WaratekAttributes.HEAP_MEMORY_DELTA_PER_SECOND_IN_WINDOW)
                 .from(containers)
                 .build());
+
+        subscribeToJvcs();
+    }
+
+    @Override
+    public void rebind() {
+        // The JVC cluster is needed when the sensors are reconnected by the superclass
+        for (Entity child : getChildren()) {
+            if (child instanceof DynamicCluster) {
+                containers = (DynamicCluster) child;
+            }
+        }
+        super.rebind();
+
+        subscribeToJvcs();
+    }
+
+    private void subscribeToJvcs() {
+        // Track JVC states as they change, rather than scanning all members
+        SensorEventListener<Object> jvcStateListener = new SensorEventListener<Object>() {
+            @Override
+            public void onEvent(SensorEvent<Object> event) {
+                updateJvcState(event.getSource());
+            }
+        };
+        subscribeToMembers(containers, WaratekAttributes.STATUS, jvcStateListener);
+        subscribeToMembers(containers, JavaVirtualContainer.ENTITY, jvcStateListener);
+        subscribeToMembers(containers, JavaVirtualContainer.MAX_HEAP_SIZE, jvcStateListener);
+        subscribe(containers, AbstractGroup.MEMBER_ADDED, new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                updateJvcState(event.getValue());
+            }
+        });
+        subscribe(containers, AbstractGroup.MEMBER_REMOVED, new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                removeJvcState(event.getValue());
+            }
+        });
+        seedJvcStates();
+
+        // Keep the pool of stopped JVCs topped up
+        if (getAttribute(JVC_POOL_HITS) == null) setAttribute(JVC_POOL_HITS, 0L);
+        if (getAttribute(JVC_POOL_MISSES) == null) setAttribute(JVC_POOL_MISSES, 0L);
+        poolHits.set(getAttribute(JVC_POOL_HITS));
+        poolMisses.set(getAttribute(JVC_POOL_MISSES));
+        subscribe(this, STOPPED_JVCS, new SensorEventListener<Integer>() {
+            @Override
+            public void onEvent(SensorEvent<Integer> event) {
+                maintainJvcPool();
+            }
+        });
     }
 
     @Override
@@ -195,6 +282,10 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
     @Override
     protected void connectSensors() {
         super.connectSensors();
+        seedJvcStates();
+        jmxConnections = new JmxConnectionRegistry(this);
+        statusWatcher = new JvcStatusWatcher(this);
+        metricsCollector = new JvcMetricsCollector(this);
         jmxMxBeanFeed = JavaAppUtils.getMxBeanSensorsBuilder(this)
                 .pollAttribute(new JmxAttributePollConfig<Boolean>(SERVICE_UP)
                         .objectName(WaratekUtils.VIRTUAL_MACHINE_MX_BEAN)
@@ -202,29 +293,11 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
                         .onException(Functions.constant(Boolean.FALSE))
                         .onSuccess(Functions.constant(Boolean.TRUE)))
                 .build();
-        jvcFeed = FunctionFeed.builder()
+        jvcMetricsFeed = FunctionFeed.builder()
                 .entity(this)
-                .period(Duration.TEN_SECONDS)
-                .poll(new FunctionPollConfig<Integer, Integer>(STOPPED_JVCS)
-                        .callable(new Callable<Integer>() {
-                            @Override
-                            public Integer call() throws Exception {
-                                return Iterables.size(getAvailableJvcs());
-                            }})
-                        .onFailureOrException(Functions.constant(0)))
-                .poll(new FunctionPollConfig<Integer, Integer>(RUNNING_JVCS)
-                        .callable(new Callable<Integer>() {
-                            @Override
-                            public Integer call() throws Exception {
-                                return getRunningJvcs();
-                            }})
-                        .onFailureOrException(Functions.constant(0)))
-                .poll(new FunctionPollConfig<Integer, Integer>(PAUSED_JVCS)
-                        .callable(new Callable<Integer>() {
-                            @Override
-                            public Integer call() throws Exception {
-                                return getPausedJvcs();
-                            }})
+                .period(Duration.FIVE_SECONDS)
+                .poll(new FunctionPollConfig<Integer, Integer>(MONITORED_JVCS)
+                        .callable(metricsCollector)
                         .onFailureOrException(Functions.constant(0)))
                 .build();
     }
@@ -232,13 +305,22 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
     @Override
     protected void disconnectSensors() {
         if (jmxMxBeanFeed != null) jmxMxBeanFeed.stop();
-        if (jvcFeed != null) jvcFeed.stop();
+        if (jvcMetricsFeed != null) jvcMetricsFeed.stop();
+        if (statusWatcher != null) statusWatcher.close();
+        if (metricsCollector != null) metricsCollector.close();
+        if (jmxConnections != null) jmxConnections.close();
+        jmxConnections = null;
         super.disconnectSensors();
     }
 
+    /**
+     * Publish the JVM location once the machine is provisioned, so that containers can be
+     * placed on it while the Waratek JVM is installed and launched. Containers wait for
+     * the JVM to be up before they are created.
+     */
     @Override
-    public void doStart(Collection<? extends Location> locations) {
-        super.doStart(locations);
+    protected void preStart() {
+        super.preStart();
 
         Maybe<SshMachineLocation> found = Machines.findUniqueSshMachineLocation(getLocations());
         Map<String, ?> flags = MutableMap.<String, Object>builder()
@@ -249,6 +331,13 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
         createLocation(flags);
     }
 
+    @Override
+    public void doStart(Collection<? extends Location> locations) {
+        super.doStart(locations);
+
+        maintainJvcPool();
+    }
+
     @Override
     public void doStop() {
         deleteLocation();
@@ -292,35 +381,245 @@ public class JavaVirtualMachineImpl extends SoftwareProcessImpl implements JavaV
 
     @Override
     public Iterable<Entity> getAvailableJvcs() {
-        return Iterables.filter(getJvcList(), new Predicate<Entity>() {
-            @Override
-            public boolean apply(@Nullable Entity input) {
-                return input.getAttribute(JavaVirtualContainer.ENTITY) == null &&
-                        JavaVirtualContainer.STATUS_SHUT_OFF.equals(input.getAttribute(WaratekAttributes.STATUS));
-            }
-        });
+        synchronized (jvcStateLock) {
+            return ImmutableList.copyOf(idleJvcs);
+        }
+    }
+
+    @Override
+    public Integer getStoppedJvcs() {
+        synchronized (jvcStateLock) {
+            return idleJvcs.size();
+        }
     }
 
     @Override
     public Integer getRunningJvcs() {
-        return Iterables.size(Iterables.filter(getJvcList(), new Predicate<Entity>() {
-            @Override
-            public boolean apply(@Nullable Entity input) {
-                return input.getAttribute(JavaVirtualContainer.ENTITY) != null &&
-                        JavaVirtualContainer.STATUS_RUNNING.equals(input.getAttribute(WaratekAttributes.STATUS));
-            }
-        }));
+        synchronized (jvcStateLock) {
+            return jvcStateCounts.count(JvcState.RUNNING);
+        }
     }
 
     @Override
     public Integer getPausedJvcs() {
-        return Iterables.size(Iterables.filter(getJvcList(), new Predicate<Entity>() {
-            @Override
-            public boolean apply(@Nullable Entity input) {
-                return input.getAttribute(JavaVirtualContainer.ENTITY) != null &&
-                        JavaVirtualContainer.STATUS_PAUSED.equals(input.getAttribute(WaratekAttributes.STATUS));
+        synchronized (jvcStateLock) {
+            return jvcStateCounts.count(JvcState.PAUSED);
+        }
+    }
+
+    @Override
+    public List<Entity> claimAvailableJvcs(int count, Entity entity) {
+        List<Entity> claimed = Lists.newArrayList();
+        synchronized (jvcStateLock) {
+            for (Entity jvc : ImmutableList.copyOf(Iterables.limit(idleJvcs, count))) {
+                ((JavaVirtualContainer) jvc).setRunningEntity(entity);
+                setJvcState(jvc, computeJvcState(jvc));
+                setJvcHeapAllocation(jvc, computeJvcHeapAllocation(jvc));
+                claimed.add(jvc);
+            }
+            publishJvcCounts();
+        }
+        return claimed;
+    }
+
+    @Override
+    public List<Entity> takeAvailableJvcs(int count) {
+        List<Entity> taken = Lists.newArrayList();
+        synchronized (jvcStateLock) {
+            for (Entity jvc : ImmutableList.copyOf(Iterables.limit(idleJvcs, count))) {
+                removingJvcs.add(jvc);
+                setJvcState(jvc, JvcState.OTHER);
+                taken.add(jvc);
             }
-        }));
+            publishJvcCounts();
+        }
+        return taken;
+    }
+
+    private JvcState computeJvcState(Entity jvc) {
+        if (removingJvcs.contains(jvc)) return JvcState.OTHER;
+        Entity running = jvc.getAttribute(JavaVirtualContainer.ENTITY);
+        String status = jvc.getAttribute(WaratekAttributes.STATUS);
+        if (running == null) {
+            return JavaVirtualContainer.STATUS_SHUT_OFF.equals(status) ? JvcState.STOPPED : JvcState.OTHER;
+        } else if (JavaVirtualContainer.STATUS_RUNNING.equals(status)) {
+            return JvcState.RUNNING;
+        } else if (JavaVirtualContainer.STATUS_PAUSED.equals(status)) {
+            return JvcState.PAUSED;
+        } else {
+            return JvcState.OTHER;
+        }
+    }
+
+    /** Must be called holding {@link #jvcStateLock}. */
+    private void setJvcState(Entity jvc, JvcState state) {
+        JvcState old = jvcStates.put(jvc, state);
+        if (old == state) return;
+        if (old != null) jvcStateCounts.remove(old);
+        jvcStateCounts.add(state);
+        if (state == JvcState.STOPPED) {
+            idleJvcs.add(jvc);
+        } else {
+            idleJvcs.remove(jvc);
+        }
+    }
+
+    /** The heap allocated to a JVC with a running entity, zero if unlimited, or {@code null} if it has none. */
+    private Long computeJvcHeapAllocation(Entity jvc) {
+        if (jvc.getAttribute(JavaVirtualContainer.ENTITY) == null) return null;
+        Long size = jvc.getAttribute(JavaVirtualContainer.MAX_HEAP_SIZE);
+        return (size == null || size <= 0) ? 0L : size;
+    }
+
+    /** Must be called holding {@link #jvcStateLock}. */
+    private void setJvcHeapAllocation(Entity jvc, Long size) {
+        Long old = (size == null) ? jvcHeapAllocations.remove(jvc) : jvcHeapAllocations.put(jvc, size);
+        if (old != null) {
+            if (old == 0L) unlimitedHeapJvcs--; else allocatedHeap -= old;
+        }
+        if (size != null) {
+            if (size == 0L) unlimitedHeapJvcs++; else allocatedHeap += size;
+        }
+    }
+
+    private void updateJvcState(Entity jvc) {
+        synchronized (jvcStateLock) {
+            if (!containers.hasMember(jvc)) return;
+            setJvcState(jvc, computeJvcState(jvc));
+            setJvcHeapAllocation(jvc, computeJvcHeapAllocation(jvc));
+            publishJvcCounts();
+        }
+    }
+
+    /**
+     * Set the state of every current JVC from its sensors, for JVCs that were added or
+     * changed before the member events were subscribed to, such as after a rebind.
+     */
+    private void seedJvcStates() {
+        if (containers == null) return;
+        synchronized (jvcStateLock) {
+            for (Entity jvc : containers.getMembers()) {
+                setJvcState(jvc, computeJvcState(jvc));
+                setJvcHeapAllocation(jvc, computeJvcHeapAllocation(jvc));
+            }
+            publishJvcCounts();
+        }
+    }
+
+    private void removeJvcState(Entity jvc) {
+        synchronized (jvcStateLock) {
+            JvcState old = jvcStates.remove(jvc);
+            if (old != null) jvcStateCounts.remove(old);
+            setJvcHeapAllocation(jvc, null);
+            idleJvcs.remove(jvc);
+            removingJvcs.remove(jvc);
+            publishJvcCounts();
+        }
+    }
+
+    /** Publish the JVC counts if they have changed; sensor events are delivered asynchronously. */
+    private void publishJvcCounts() {
+        synchronized (jvcStateLock) {
+            publishIfChanged(STOPPED_JVCS, idleJvcs.size());
+            publishIfChanged(RUNNING_JVCS, jvcStateCounts.count(JvcState.RUNNING));
+            publishIfChanged(PAUSED_JVCS, jvcStateCounts.count(JvcState.PAUSED));
+            publishIfChanged(ALLOCATED_HEAP_MEMORY, allocatedHeap);
+            publishIfChanged(UNLIMITED_HEAP_JVCS, unlimitedHeapJvcs);
+        }
+    }
+
+    private <T> void publishIfChanged(AttributeSensor<T> sensor, T value) {
+        if (!value.equals(getAttribute(sensor))) {
+            setAttribute(sensor, value);
+        }
+    }
+
+    @Override
+    public void recordJvcPoolUsage(int hits, int misses) {
+        setAttribute(JVC_POOL_HITS, poolHits.addAndGet(hits));
+        setAttribute(JVC_POOL_MISSES, poolMisses.addAndGet(misses));
+    }
+
+    /**
+     * Start a background task to keep the number of stopped JVCs between the
+     * {@link #JVC_POOL_MIN_IDLE minimum} and {@link #JVC_POOL_MAX_IDLE maximum} pool sizes.
+     * <p>
+     * Only one task runs at a time; changes to the number of stopped JVCs while it is
+     * running will trigger another check once it completes.
+     */
+    protected void maintainJvcPool() {
+        if (getConfig(JVC_POOL_MIN_IDLE) <= 0 && getConfig(JVC_POOL_MAX_IDLE) <= 0) return;
+        if (!isLocationAvailable() || !Boolean.TRUE.equals(getAttribute(SERVICE_UP))) return;
+
+        poolDirty.set(true);
+        if (poolMaintenance.compareAndSet(false, true)) {
+            Entities.submit(this, Tasks.<Void>builder()
+                    .name("Maintain JVC pool")
+                    .body(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            try {
+                                while (poolDirty.getAndSet(false)) {
+                                    resizeJvcPool();
+                                }
+                            } finally {
+                                poolMaintenance.set(false);
+                            }
+                            // A trigger may have arrived after the last check but before the flag was cleared
+                            if (poolDirty.get()) maintainJvcPool();
+                            return null;
+                        }
+                    })
+                    .build());
+        }
+    }
+
+    private void resizeJvcPool() {
+        WaratekMachineLocation machine = getDynamicLocation();
+        int minIdle = getConfig(JVC_POOL_MIN_IDLE);
+        int maxIdle = getConfig(JVC_POOL_MAX_IDLE);
+        int idle = getStoppedJvcs();
+        int free = machine.getAvailableJvcCount() - idle;
+
+        if (idle < minIdle && free > 0) {
+            int delta = Math.min(minIdle - idle, free);
+            if (machine.reserve(delta)) {
+                log.info("JVM {}: adding {} JVCs to pool with {} idle", new Object[] { getJvmName(), delta, idle });
+                try {
+                    machine.addContainers(delta, null);
+                } catch (NoMachinesAvailableException nmae) {
+                    log.warn("JVM {}: failed adding JVCs to pool: {}", getJvmName(), nmae.getMessage());
+                } finally {
+                    machine.cancelReservation(delta);
+                }
+            }
+        } else if (maxIdle > 0 && idle > maxIdle) {
+            List<JavaVirtualContainer> removed = machine.removeAvailable(idle - maxIdle);
+            log.info("JVM {}: removing {} JVCs from pool with {} idle", new Object[] { getJvmName(), removed.size(), idle });
+            for (JavaVirtualContainer jvc : removed) {
+                Entities.invokeEffector(this, jvc, Startable.STOP).getUnchecked();
+                Entities.unmanage(jvc);
+            }
+        }
+    }
+
+    @Override
+    public JmxConnectionRegistry.Handle acquireJmxConnection() {
+        JmxConnectionRegistry registry = jmxConnections;
+        if (registry == null) {
+            throw new IllegalStateException("JMX connection to " + getJvmName() + " not available");
+        }
+        return registry.acquire();
+    }
+
+    @Override
+    public JvcStatusWatcher getJvcStatusWatcher() {
+        return statusWatcher;
+    }
+
+    @Override
+    public JvcMetricsCollector getJvcMetricsCollector() {
+        return metricsCollector;
     }
 
     @Override
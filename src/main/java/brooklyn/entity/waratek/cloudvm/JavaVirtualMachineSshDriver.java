@@ -17,6 +17,9 @@ package brooklyn.entity.waratek.cloudvm;
 
 import static java.lang.String.format;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,19 +36,26 @@ import brooklyn.util.ResourceUtils;
 import brooklyn.util.collections.MutableList;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.collections.MutableSet;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.net.Networking;
 import brooklyn.util.os.Os;
 import brooklyn.util.ssh.BashCommands;
+import brooklyn.util.stream.Streams;
 import brooklyn.util.task.DynamicTasks;
 import brooklyn.util.task.ssh.SshTasks;
 import brooklyn.util.text.ByteSizeStrings;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 
 public class JavaVirtualMachineSshDriver extends JavaSoftwareProcessSshDriver implements JavaVirtualMachineDriver {
 
+    private static final String CONTAINER_JAR = "brooklyn-waratek-container.jar";
+
     private AtomicBoolean installed = new AtomicBoolean(false);
 
     public JavaVirtualMachineSshDriver(EntityLocal entity, SshMachineLocation machine) {
@@ -196,23 +206,124 @@ public class JavaVirtualMachineSshDriver extends JavaSoftwareProcessSshDriver im
         DownloadResolver resolver = Entities.newDownloader(this);
         List<String> urls = resolver.getTargets();
         String saveAs = resolver.getFilename();
-        setExpandedInstallDir(Os.mergePaths(getInstallDir(), resolver.getUnpackedDirectoryName(format("waratek_release_%s_package", getVersion()))));
+        String unpackedDirectory = resolver.getUnpackedDirectoryName(format("waratek_release_%s_package", getVersion()));
+        setExpandedInstallDir(Os.mergePaths(getInstallDir(), unpackedDirectory));
 
         // We must be able to run sudo, to customize and launch
         DynamicTasks.queueIfPossible(SshTasks.dontRequireTtyForSudo(getMachine(), true)).orSubmitAndBlock();
 
+        // JVMs sharing a host share the install directory, so only download and unpack once
+        String mutex = "install:" + getInstallDir();
+        try {
+            getMachine().acquireMutex(mutex, "install");
+
+            boolean cached = getEntity().getConfig(JavaVirtualMachine.USE_ARTIFACT_CACHE) && installFromCache(urls, saveAs, unpackedDirectory);
+            if (!cached) {
+                installOnHost(urls, saveAs, unpackedDirectory);
+            }
+
+            installContainerJar();
+        } catch (InterruptedException ie) {
+            throw Exceptions.propagate(ie);
+        } finally {
+            getMachine().releaseMutex(mutex);
+        }
+    }
+
+    /**
+     * Copy the container jar to the host, unless it already has a copy with the same checksum.
+     * The jar is copied to a temporary file and renamed, so a partial copy is never used.
+     */
+    private void installContainerJar() {
+        byte[] content;
+        InputStream in = ResourceUtils.create(this).getResourceFromUrl("classpath://" + CONTAINER_JAR);
+        try {
+            content = ByteStreams.toByteArray(in);
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        } finally {
+            Streams.closeQuietly(in);
+        }
+        String checksum = Hashing.sha256().hashBytes(content).toString();
+        String jar = Os.mergePaths(getInstallDir(), CONTAINER_JAR);
+        String checkJar = format("echo \"%s  %s\" | sha256sum -c --status", checksum, jar);
+        if (getMachine().execCommands("check container jar", ImmutableList.of(checkJar)) == 0) return;
+
+        getMachine().copyTo(new ByteArrayInputStream(content), jar + ".part");
+        int result = getMachine().execCommands("install container jar", ImmutableList.of(format("mv -f %1$s.part %1$s", jar)));
+        if (result != 0) throw new IllegalStateException("Failed to install " + CONTAINER_JAR + " on " + getMachine());
+    }
+
+    /**
+     * Download and unpack the release archive on the host.
+     * <p>
+     * The archive is downloaded to a temporary file and only unpacked completely once, so
+     * an interrupted install is retried.
+     */
+    private void installOnHost(List<String> urls, String saveAs, String unpackedDirectory) {
+        String part = saveAs + ".part";
+        String unpacked = format(".%s.unpacked", unpackedDirectory);
         List<String> commands = ImmutableList.<String>builder()
-                .addAll(BashCommands.commandsToDownloadUrlsAs(urls, saveAs))
+                .add(format("if [ ! -f %s ]; then rm -f %s && %s && mv -f %s %s; fi", saveAs, part,
+                        Joiner.on(" && ").join(BashCommands.commandsToDownloadUrlsAs(urls, part)), part, saveAs))
                 .add(BashCommands.INSTALL_TAR)
-                .add("tar zxvf " + saveAs)
+                .add(format("if [ ! -f %1$s ]; then tar zxvf %2$s && touch %1$s || { rm -f %2$s; false; }; fi", unpacked, saveAs))
                 .build();
 
         newScript(INSTALLING)
+                .failOnNonZeroResultCode()
                 .body.append(commands)
                 .execute();
+    }
+
+    /**
+     * Copy the release archive from the management node {@link ArtifactCache cache} and unpack it.
+     * <p>
+     * Each release is unpacked into a directory named by its checksum, in a staging directory
+     * that is renamed into place once complete. An existing installation is reused, and one
+     * in use by running JVMs is never removed or overwritten.
+     *
+     * @return {@code false} if the management node could not cache the archive, so it should be downloaded on the host
+     */
+    private boolean installFromCache(List<String> urls, String saveAs, String unpackedDirectory) {
+        ArtifactCache.Artifact artifact;
+        try {
+            artifact = ArtifactCache.get(getEntity().getConfig(JavaVirtualMachine.ARTIFACT_CACHE_DIR),
+                    getVersion(), saveAs, urls, getEntity().getConfig(JavaVirtualMachine.DOWNLOAD_CHECKSUM));
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Could not cache release {} on management node, downloading on {}: {}", new Object[] { getVersion(), getMachine(), e.getMessage() });
+            return false;
+        }
+
+        String releaseDir = Os.mergePaths(getInstallDir(), format("release-%s", artifact.getChecksum().substring(0, 16)));
+        if (getMachine().execCommands("check installed", ImmutableList.of("test -d " + releaseDir)) == 0) {
+            log.info("Release {} already installed on {}, skipping", getVersion(), getMachine());
+            setExpandedInstallDir(Os.mergePaths(releaseDir, unpackedDirectory));
+            return true;
+        }
 
-        getMachine().copyTo(ResourceUtils.create(this).getResourceFromUrl("classpath://brooklyn-waratek-container.jar"),
-                Os.mergePaths(getInstallDir(), "brooklyn-waratek-container.jar"));
+        String staging = releaseDir + ".part";
+        int result = getMachine().execCommands("create staging directory", ImmutableList.of("rm -rf " + staging, "mkdir -p " + staging));
+        if (result != 0) {
+            log.warn("Could not create staging directory {} on {} (exit code {}), downloading on host", new Object[] { staging, getMachine(), result });
+            return false;
+        }
+        setExpandedInstallDir(Os.mergePaths(releaseDir, unpackedDirectory));
+        getMachine().copyTo(artifact.getFile(), Os.mergePaths(staging, saveAs));
+
+        List<String> commands = ImmutableList.<String>builder()
+                .add(BashCommands.INSTALL_TAR)
+                .add(format("tar zxf %s -C %s", Os.mergePaths(staging, saveAs), staging))
+                .add("rm -f " + Os.mergePaths(staging, saveAs))
+                .add(format("mv %s %s", staging, releaseDir))
+                .build();
+
+        newScript(INSTALLING)
+                .failOnNonZeroResultCode()
+                .body.append(commands)
+                .execute();
+        return true;
     }
 
     @Override
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.MBeanServerConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.java.UsesJmx;
+import brooklyn.event.feed.jmx.JmxHelper;
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+/**
+ * The shared JMX connection to a Waratek JVM.
+ * <p>
+ * The registry is held by the {@link JavaVirtualMachine}, which creates it when its sensors
+ * are connected and closes it when they are disconnected. All JVCs, applications and drivers
+ * on the JVM use the same {@link JmxHelper}, through a {@link Handle} obtained from
+ * {@link JavaVirtualMachine#acquireJmxConnection()} that counts a reference to that
+ * particular connection. A connection is disconnected when the last handle using it is
+ * released, so a connection replaced after the JVM's JMX URL changes stays open until its
+ * existing holders have moved off it, and every connection is disconnected when the
+ * registry is closed.
+ * <p>
+ * Handles move to the current connection when the URL changes, and a connection that
+ * has dropped is re-established in place when a holder reports an I/O failure.
+ */
+public class JmxConnectionRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxConnectionRegistry.class);
+
+    private final JavaVirtualMachine jvm;
+
+    /* Guarded by this. */
+
+    private SharedConnection current;
+    private final Set<SharedConnection> open = Sets.newHashSet();
+    private boolean closed = false;
+
+    public JmxConnectionRegistry(JavaVirtualMachine jvm) {
+        this.jvm = jvm;
+    }
+
+    /**
+     * Obtain a connected {@link Handle} for the JVM.
+     * <p>
+     * Every handle must be {@link Handle#release() released} when no longer needed.
+     *
+     * @throws IllegalStateException if the registry has been closed
+     */
+    public Handle acquire() {
+        SharedConnection connection = reference();
+        try {
+            connection.connect();
+        } catch (Exception e) {
+            unreference(connection);
+            throw Exceptions.propagate(e);
+        }
+        return new Handle(connection);
+    }
+
+    private synchronized SharedConnection reference() {
+        Preconditions.checkState(!closed, "JMX connections to %s closed", jvm);
+        String url = jvm.getAttribute(UsesJmx.JMX_URL);
+        Preconditions.checkState(url != null, "JMX URL not available for %s", jvm);
+
+        if (current == null || !current.url.equals(url)) {
+            // The JVM has been restarted with a new URL; the old connection is closed by its last holder
+            current = new SharedConnection(url);
+            open.add(current);
+            if (LOG.isDebugEnabled()) LOG.debug("New JMX connection to {} at {}", jvm, url);
+        }
+        current.references++;
+        return current;
+    }
+
+    private void unreference(SharedConnection connection) {
+        synchronized (this) {
+            if (--connection.references > 0) return;
+            if (current == connection) current = null;
+            if (!open.remove(connection)) return;
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Closing JMX connection to {} at {}", jvm, connection.url);
+        connection.helper.disconnect();
+    }
+
+    /** Disconnect all connections; handles still held fail on their next use. */
+    public void close() {
+        List<SharedConnection> connections;
+        synchronized (this) {
+            closed = true;
+            current = null;
+            connections = ImmutableList.copyOf(open);
+            open.clear();
+        }
+        for (SharedConnection connection : connections) {
+            if (LOG.isDebugEnabled()) LOG.debug("Closing JMX connection to {} at {}", jvm, connection.url);
+            connection.close();
+        }
+    }
+
+    /**
+     * A reference to the shared connection to a JVM.
+     */
+    public class Handle {
+        private SharedConnection connection;
+        private boolean released = false;
+
+        private Handle(SharedConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * The connected {@link JmxHelper}, moving to a new connection if the JVM's JMX URL has changed.
+         */
+        public JmxHelper getHelper() {
+            SharedConnection current = current();
+            try {
+                current.connect();
+            } catch (IOException ioe) {
+                throw Exceptions.propagate(ioe);
+            }
+            return current.helper;
+        }
+
+        public MBeanServerConnection getConnection() {
+            return getHelper().getConnection();
+        }
+
+        /**
+         * Report a failed JMX call, re-establishing the connection if it has dropped.
+         */
+        public void failed(Throwable t) {
+            if (Iterables.isEmpty(Iterables.filter(Throwables.getCausalChain(t), IOException.class))) return;
+            SharedConnection current;
+            synchronized (this) {
+                if (released) return;
+                current = connection;
+            }
+            current.reconnectIfBroken();
+        }
+
+        /** Release the reference; further calls have no effect. */
+        public void release() {
+            SharedConnection old;
+            synchronized (this) {
+                if (released) return;
+                released = true;
+                old = connection;
+            }
+            unreference(old);
+        }
+
+        private SharedConnection current() {
+            SharedConnection old;
+            SharedConnection replacement;
+            synchronized (this) {
+                Preconditions.checkState(!released, "JMX connection to %s already released", jvm);
+                String url = jvm.getAttribute(UsesJmx.JMX_URL);
+                if (url == null || url.equals(connection.url)) return connection;
+                old = connection;
+                replacement = reference();
+                connection = replacement;
+            }
+            LOG.info("JMX URL for {} changed to {}, moving to new connection", jvm, replacement.url);
+            unreference(old);
+            return replacement;
+        }
+    }
+
+    private static class SharedConnection {
+        private final String url;
+        private final JmxHelper helper;
+        private int references = 0; // guarded by the registry
+        private boolean closed = false;
+
+        public SharedConnection(String url) {
+            this.url = url;
+            this.helper = new JmxHelper(url);
+        }
+
+        public synchronized void connect() throws IOException {
+            Preconditions.checkState(!closed, "JMX connection to %s closed", url);
+            if (!helper.isConnected()) helper.connect();
+        }
+
+        public synchronized void close() {
+            closed = true;
+            helper.disconnect();
+        }
+
+        /** Check the connection after a failure, and reconnect if it has dropped. */
+        public synchronized void reconnectIfBroken() {
+            if (closed) return;
+            if (helper.isConnected()) {
+                try {
+                    helper.getConnection().getMBeanCount();
+                    return;
+                } catch (IOException ioe) {
+                    LOG.info("JMX connection to {} lost, reconnecting: {}", url, ioe.getMessage());
+                    helper.disconnect();
+                }
+            }
+            try {
+                helper.connect();
+            } catch (IOException ioe) {
+                LOG.warn("Failed to reconnect JMX to {}: {}", url, ioe.getMessage());
+            }
+        }
+    }
+
+}
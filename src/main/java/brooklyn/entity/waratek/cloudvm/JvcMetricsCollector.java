@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.event.AttributeSensor;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Collects the {@code Info} MXBean attributes for every JVC on a JVM in a single sweep.
+ * <p>
+ * The JVCs are found with one {@code queryNames} call, then each {@code Info} MXBean is
+ * read with one {@code getAttributes} call. Values are published to the {@link WaratekAttributes}
+ * sensors of the JVC and of the entity running in it. Returns the number of JVCs read.
+ * <p>
+ * The last status seen for each JVC is kept, so that liveness checks can be answered
+ * without going to JMX while it is {@link #getStatus(String, Duration) fresh enough}.
+ */
+public class JvcMetricsCollector implements Callable<Integer> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JvcMetricsCollector.class);
+
+    public static final String INFO_MX_BEAN_PATTERN = "com.waratek:type=*,name=Info";
+
+    private static final Map<String, AttributeSensor<?>> INFO_SENSORS = ImmutableMap.<String, AttributeSensor<?>>builder()
+            .put("BytesSent", WaratekAttributes.BYTES_SENT)
+            .put("BytesReceived", WaratekAttributes.BYTES_RECEIVED)
+            .put("FileDescriptorCount", WaratekAttributes.FILE_DESCRIPTOR_COUNT)
+            .put("CpuUsage", WaratekAttributes.CPU_USAGE)
+            .put("Status", WaratekAttributes.STATUS)
+            .build();
+    private static final String[] INFO_ATTRIBUTES = INFO_SENSORS.keySet().toArray(new String[0]);
+
+    private final JavaVirtualMachine jvm;
+    private final ConcurrentMap<String, StatusSample> statuses = Maps.newConcurrentMap();
+    private JmxConnectionRegistry.Handle jmx;
+
+    public JvcMetricsCollector(JavaVirtualMachine jvm) {
+        this.jvm = jvm;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        Map<String, Entity> jvcs = Maps.newHashMap();
+        for (Entity jvc : jvm.getJvcList()) {
+            String name = jvc.getAttribute(JavaVirtualContainer.JVC_NAME);
+            if (name != null) jvcs.put(name, jvc);
+        }
+        if (jvcs.isEmpty()) return 0;
+
+        MBeanServerConnection connection = getJmx().getConnection();
+        Set<ObjectName> names;
+        try {
+            names = connection.queryNames(ObjectName.getInstance(INFO_MX_BEAN_PATTERN), null);
+        } catch (Exception e) {
+            getJmx().failed(e);
+            throw e;
+        }
+        int count = 0;
+        for (ObjectName name : names) {
+            Entity jvc = jvcs.get(name.getKeyProperty("type"));
+            if (jvc == null) continue;
+            try {
+                AttributeList values = connection.getAttributes(name, INFO_ATTRIBUTES);
+                for (Attribute attribute : values.asList()) {
+                    if ("Status".equals(attribute.getName())) recordStatus(name.getKeyProperty("type"), (String) attribute.getValue());
+                }
+                publish(jvc, values);
+                Entity running = jvc.getAttribute(JavaVirtualContainer.ENTITY);
+                if (running != null) publish(running, values);
+                count++;
+            } catch (Exception e) {
+                // The JVC may have been undefined since the sweep
+                if (LOG.isDebugEnabled()) LOG.debug("Error reading {} on {}: {}", new Object[] { name, jvm, e.getMessage() });
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The status of the JVC, from the last sweep if it is recent enough, otherwise read over JMX.
+     *
+     * @return the status, or {@code null} if the JVC is not defined
+     */
+    public String getStatus(String jvcName, Duration maxAge) {
+        StatusSample sample = statuses.get(jvcName);
+        if (sample != null && System.currentTimeMillis() - sample.timestamp <= maxAge.toMilliseconds()) {
+            return sample.status;
+        }
+        try {
+            ObjectName name = ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvcName, "Info"));
+            String status = (String) getJmx().getConnection().getAttribute(name, "Status");
+            recordStatus(jvcName, status);
+            return status;
+        } catch (InstanceNotFoundException infe) {
+            statuses.remove(jvcName);
+            return null;
+        } catch (Exception e) {
+            getJmx().failed(e);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /**
+     * Record the status of a JVC, or forget it if {@code null}.
+     * <p>
+     * Lifecycle operations call this once they have changed the status, so liveness
+     * checks do not see the previous status until it ages out.
+     */
+    public void recordStatus(String jvcName, String status) {
+        if (status == null) {
+            statuses.remove(jvcName);
+        } else {
+            statuses.put(jvcName, new StatusSample(status, System.currentTimeMillis()));
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void publish(Entity entity, AttributeList values) {
+        for (Attribute attribute : values.asList()) {
+            AttributeSensor sensor = INFO_SENSORS.get(attribute.getName());
+            if (sensor != null) ((EntityLocal) entity).setAttribute(sensor, attribute.getValue());
+        }
+    }
+
+    private synchronized JmxConnectionRegistry.Handle getJmx() {
+        if (jmx == null) {
+            jmx = jvm.acquireJmxConnection();
+        }
+        return jmx;
+    }
+
+    public synchronized void close() {
+        if (jmx != null) jmx.release();
+        jmx = null;
+        statuses.clear();
+    }
+
+    private static class StatusSample {
+        private final String status;
+        private final long timestamp;
+
+        public StatusSample(String status, long timestamp) {
+            this.status = status;
+            this.timestamp = timestamp;
+        }
+    }
+
+}
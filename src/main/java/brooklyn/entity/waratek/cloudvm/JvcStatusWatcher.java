@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.event.feed.jmx.JmxHelper;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Waits for JVC status transitions on a single JVM.
+ * <p>
+ * Waiters subscribe to JMX notifications from the {@code VirtualContainer} MXBean
+ * where these are supported, checking the {@code Status} attribute once in case it
+ * changed before the listener was added. Only if notifications are not available do
+ * they poll the attribute, with an exponential backoff. All waiters on the JVM share a
+ * single watcher thread.
+ * <p>
+ * Once {@link #close() closed}, the watcher rejects any further waits.
+ */
+public class JvcStatusWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JvcStatusWatcher.class);
+
+    public static final Duration INITIAL_POLL_PERIOD = Duration.millis(100);
+    public static final Duration MAX_POLL_PERIOD = Duration.FIVE_SECONDS;
+
+    private final JavaVirtualMachine jvm;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean notificationsSupported = new AtomicBoolean(true);
+    private JmxConnectionRegistry.Handle jmx;
+    private boolean closed = false;
+
+    public JvcStatusWatcher(JavaVirtualMachine jvm) {
+        this.jvm = jvm;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("brooklyn-waratek-status-" + jvm.getId() + "-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Wait until the named JVC reaches the given status.
+     *
+     * @return {@code false} if the status was not reached before the timeout
+     * @throws IllegalStateException if the watcher has been closed
+     */
+    public boolean waitForStatus(String jvcName, String status, Duration timeout) throws InterruptedException {
+        Waiter waiter;
+        try {
+            ObjectName objectName = ObjectName.getInstance(WaratekUtils.waratekMXBeanName(jvcName, "VirtualContainer"));
+            waiter = new Waiter(getJmx(), objectName, status);
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+        try {
+            waiter.start();
+            return waiter.latch.await(timeout.toMilliseconds(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            throw new IllegalStateException("Status watcher for " + jvm + " closed", ree);
+        } finally {
+            waiter.cancel();
+        }
+    }
+
+    private synchronized JmxConnectionRegistry.Handle getJmx() {
+        Preconditions.checkState(!closed, "Status watcher for %s closed", jvm);
+        if (jmx == null) {
+            jmx = jvm.acquireJmxConnection();
+        }
+        return jmx;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        executor.shutdownNow();
+        if (jmx != null) jmx.release();
+        jmx = null;
+    }
+
+    private class Waiter implements NotificationListener, Runnable {
+        private final JmxConnectionRegistry.Handle jmx;
+        private final JmxHelper helper;
+        private final ObjectName objectName;
+        private final String status;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicBoolean listening = new AtomicBoolean(false);
+        private volatile long delay = INITIAL_POLL_PERIOD.toMilliseconds();
+        private volatile ScheduledFuture<?> poll;
+
+        public Waiter(JmxConnectionRegistry.Handle jmx, ObjectName objectName, String status) {
+            this.jmx = jmx;
+            this.helper = jmx.getHelper();
+            this.objectName = objectName;
+            this.status = status;
+        }
+
+        public void start() {
+            if (notificationsSupported.get()) {
+                try {
+                    helper.addNotificationListener(objectName, this);
+                    listening.set(true);
+                } catch (Exception e) {
+                    if (LOG.isDebugEnabled()) LOG.debug("Notifications not available from {}, polling instead: {}", objectName, e.getMessage());
+                    notificationsSupported.set(false);
+                }
+            }
+            // Check now in case the status changed before the listener was added; without a listener this keeps polling
+            poll = executor.schedule(this, 0, TimeUnit.MILLISECONDS);
+        }
+
+        public void cancel() {
+            latch.countDown();
+            if (poll != null) poll.cancel(false);
+            if (listening.getAndSet(false)) {
+                try {
+                    helper.removeNotificationListener(objectName, this);
+                } catch (Exception e) {
+                    if (LOG.isTraceEnabled()) LOG.trace("Error removing listener from {}: {}", objectName, e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (notification instanceof AttributeChangeNotification) {
+                AttributeChangeNotification change = (AttributeChangeNotification) notification;
+                if ("Status".equals(change.getAttributeName()) && status.equals(change.getNewValue())) {
+                    latch.countDown();
+                    return;
+                }
+            }
+            // Check the current status on the watcher thread, not the JMX notification thread
+            if (latch.getCount() > 0 && !executor.isShutdown()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        check();
+                    }
+                });
+            }
+        }
+
+        private boolean check() {
+            if (latch.getCount() == 0) return true;
+            try {
+                String current = (String) jmx.getHelper().getAttribute(objectName, "Status");
+                if (status.equals(current)) {
+                    latch.countDown();
+                    return true;
+                }
+            } catch (Exception e) {
+                if (LOG.isDebugEnabled()) LOG.debug("Error checking status of {}: {}", objectName, e.getMessage());
+                jmx.failed(e);
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            if (check()) return;
+            if (!listening.get() && !executor.isShutdown()) {
+                poll = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                delay = Math.min(delay * 2, MAX_POLL_PERIOD.toMilliseconds());
+            }
+        }
+    }
+
+}
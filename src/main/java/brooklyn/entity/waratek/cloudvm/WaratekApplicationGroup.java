@@ -15,6 +15,10 @@
  */
 package brooklyn.entity.waratek.cloudvm;
 
+import java.util.List;
+import java.util.Map;
+
+import brooklyn.config.ConfigKey;
 import brooklyn.entity.Application;
 import brooklyn.entity.annotation.Effector;
 import brooklyn.entity.annotation.EffectorParam;
@@ -26,6 +30,10 @@ import brooklyn.entity.trait.HasShortName;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.AttributeSensorAndConfigKey;
 import brooklyn.event.basic.Sensors;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.reflect.TypeToken;
 
 @ImplementedBy(WaratekApplicationGroupImpl.class)
 public interface WaratekApplicationGroup extends BasicGroup, HasShortName {
@@ -36,8 +44,19 @@ public interface WaratekApplicationGroup extends BasicGroup, HasShortName {
     AttributeSensorAndConfigKey<Long, Long> ELASTIC_MEMORY = ConfigKeys.newSensorAndConfigKey(Long.class,
             "waratek.elasticGroup.heapMemory", "The heap memory allcoated to the elastic group", 0L);
 
+    @SetFromFlag("elasticRebalancePeriod")
+    ConfigKey<Duration> ELASTIC_REBALANCE_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "waratek.elasticGroup.rebalancePeriod", "Minimum time between moving heap memory across the elastic group", Duration.TEN_SECONDS);
+
+    @SetFromFlag("elasticReservedFraction")
+    ConfigKey<Double> ELASTIC_RESERVED_FRACTION = ConfigKeys.newDoubleConfigKey(
+            "waratek.elasticGroup.reservedFraction", "Fraction of the elastic heap shared evenly, with the rest following heap usage", 0.5d);
+
     AttributeSensor<Integer> ELASTIC_GROUP_ID = Sensors.newIntegerSensor("waratek.elasticGroup.id", "The ID of the elastic group");
 
+    AttributeSensor<Map<String, List<String>>> LAYOUT = Sensors.newSensor(new TypeToken<Map<String, List<String>>>() { },
+            "waratek.application.layout", "The JVCs running the application on each JVM");
+
     AttributeSensor<Application> WARATEK_APPLICATION = Sensors.newSensor(Application.class,
             "waratek.application.entity", "The parent application entity");
 
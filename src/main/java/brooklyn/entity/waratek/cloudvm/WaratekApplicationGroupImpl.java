@@ -15,6 +15,15 @@
  */
 package brooklyn.entity.waratek.cloudvm;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
@@ -23,27 +32,71 @@ import org.slf4j.LoggerFactory;
 import brooklyn.entity.Application;
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.BasicGroupImpl;
+import brooklyn.entity.basic.Entities;
 import brooklyn.entity.group.AbstractMembershipTrackingPolicy;
+import brooklyn.entity.java.UsesJavaMXBeans;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
 import brooklyn.location.Location;
+import brooklyn.management.Task;
 import brooklyn.location.waratek.WaratekContainerLocation;
 import brooklyn.policy.Policy;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.ScheduledTask;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicates;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
 
 public class WaratekApplicationGroupImpl extends BasicGroupImpl implements WaratekApplicationGroup {
 
     private static final Logger log = LoggerFactory.getLogger(WaratekApplicationGroupImpl.class);
 
+    /** Smallest relative change to a JVC heap worth making. */
+    private static final double MIN_HEAP_CHANGE = 0.05d;
+
+    /** Fraction of its used heap that a JVC is always given on top of it. */
+    private static final double HEAP_HEADROOM = 0.1d;
+
     private Policy policy;
     private AtomicReference<Application> application = new AtomicReference();
     private Multimap<JavaVirtualMachine, JavaVirtualContainer> layout = Multimaps.synchronizedMultimap(HashMultimap.<JavaVirtualMachine, JavaVirtualContainer>create());
 
+    /* Guarded by layout. */
+
+    private Map<Entity, JavaVirtualContainer> placements = Maps.newHashMap();
+    private Multiset<JavaVirtualContainer> jvcMembers = HashMultiset.create();
+    private Map<String, SortedSet<String>> jvcNames = Maps.newHashMap();
+    private AtomicLong lastRebalance = new AtomicLong(0L);
+    private AtomicBoolean rebalancing = new AtomicBoolean(false);
+    private AtomicBoolean deferred = new AtomicBoolean(false);
+
+    private final SensorEventListener<Long> heapListener = new SensorEventListener<Long>() {
+        @Override
+        public void onEvent(SensorEvent<Long> event) {
+            long wait = lastRebalance.get() + getConfig(ELASTIC_REBALANCE_PERIOD).toMilliseconds() - System.currentTimeMillis();
+            if (wait <= 0) {
+                rebalance();
+            } else {
+                deferRebalance(wait);
+            }
+        }
+    };
+
     @Override
     public void init() {
         log.info("Created Waratek Application Group");
@@ -53,17 +106,17 @@ public class WaratekApplicationGroupImpl extends BasicGroupImpl implements Warat
             @Override
             protected void onEntityChange(Entity member) {
                 if (log.isDebugEnabled()) log.debug("Member {} updated for {} appliation", member, WaratekApplicationGroupImpl.this);
-                update();
+                update(member);
             }
             @Override
             protected void onEntityAdded(Entity member) {
                 if (log.isDebugEnabled()) log.debug("Member {} added to {} appliation", member, WaratekApplicationGroupImpl.this);
-                update();
+                update(member);
             }
             @Override
             protected void onEntityRemoved(Entity member) {
                 if (log.isDebugEnabled()) log.debug("Member {} removed from {} appliation", member, WaratekApplicationGroupImpl.this);
-                update();
+                remove(member);
             }
         };
         addPolicy(policy);
@@ -74,34 +127,88 @@ public class WaratekApplicationGroupImpl extends BasicGroupImpl implements Warat
         return "ApplicationGroup";
     }
 
-    public void update() {
+    /** Move the member in the layout to the JVC it is now running in, if that has changed. */
+    public void update(Entity member) {
+        if (application.compareAndSet(null, member.getApplication())) {
+            setAttribute(WARATEK_APPLICATION, application.get());
+        }
+        JavaVirtualContainer jvc = null;
+        Optional<Location> found = Iterables.tryFind(member.getLocations(), Predicates.instanceOf(WaratekContainerLocation.class));
+        if (found.isPresent()) {
+            jvc = ((WaratekContainerLocation) found.get()).getOwner();
+        }
         synchronized (layout) {
-            layout.clear();
-            if (getMembers().isEmpty()) return;
-            for (Entity member : getMembers()) {
-                if (application.compareAndSet(null, member.getApplication())) {
-                    setAttribute(WARATEK_APPLICATION, application.get());
-                }
-                Optional<Location> found = Iterables.tryFind(member.getLocations(), Predicates.instanceOf(WaratekContainerLocation.class));
-                if (found.isPresent()) {
-                    WaratekContainerLocation container = (WaratekContainerLocation) found.get();
-                    JavaVirtualContainer jvc = container.getOwner();
-                    JavaVirtualMachine jvm = container.getJavaVirtualMachine();
-                    layout.put(jvm, jvc);
-                }
+            JavaVirtualContainer previous = (jvc == null) ? placements.remove(member) : placements.put(member, jvc);
+            if (Objects.equal(previous, jvc)) return;
+            Set<String> changed = Sets.newHashSet();
+            if (previous != null && removeJvc(previous)) changed.add(previous.getJavaVirtualMachine().getJvmName());
+            if (jvc != null && addJvc(jvc)) changed.add(jvc.getJavaVirtualMachine().getJvmName());
+            publishLayout(changed);
+        }
+    }
+
+    /** Remove the member from the layout. */
+    public void remove(Entity member) {
+        synchronized (layout) {
+            JavaVirtualContainer previous = placements.remove(member);
+            if (previous == null) return;
+            if (removeJvc(previous)) publishLayout(ImmutableSet.of(previous.getJavaVirtualMachine().getJvmName()));
+        }
+    }
+
+    /** @return {@code true} if the JVC was not already in the layout */
+    private boolean addJvc(JavaVirtualContainer jvc) {
+        if (jvcMembers.add(jvc, 1) > 0) return false;
+        JavaVirtualMachine jvm = jvc.getJavaVirtualMachine();
+        layout.put(jvm, jvc);
+        SortedSet<String> names = jvcNames.get(jvm.getJvmName());
+        if (names == null) {
+            names = Sets.newTreeSet();
+            jvcNames.put(jvm.getJvmName(), names);
+        }
+        names.add(jvc.getJvcName());
+        // Follow the heap usage of the JVCs in the layout
+        subscribe(jvc, UsesJavaMXBeans.USED_HEAP_MEMORY, heapListener);
+        return true;
+    }
+
+    /** @return {@code true} if the JVC has been removed from the layout */
+    private boolean removeJvc(JavaVirtualContainer jvc) {
+        if (jvcMembers.remove(jvc, 1) != 1) return false;
+        JavaVirtualMachine jvm = jvc.getJavaVirtualMachine();
+        layout.remove(jvm, jvc);
+        SortedSet<String> names = jvcNames.get(jvm.getJvmName());
+        if (names != null) {
+            names.remove(jvc.getJvcName());
+            if (names.isEmpty()) jvcNames.remove(jvm.getJvmName());
+        }
+        unsubscribe(jvc);
+        return true;
+    }
+
+    /**
+     * Publish the JVC names on each JVM, copying only the lists for the JVMs that
+     * have changed into the previously published layout.
+     */
+    private void publishLayout(Collection<String> changed) {
+        if (changed.isEmpty()) return;
+        Map<String, List<String>> current = getAttribute(LAYOUT);
+        Map<String, List<String>> names = (current == null) ? Maps.<String, List<String>>newTreeMap() : Maps.newTreeMap(current);
+        for (String jvm : changed) {
+            SortedSet<String> jvcs = jvcNames.get(jvm);
+            if (jvcs == null) {
+                names.remove(jvm);
+            } else {
+                names.put(jvm, ImmutableList.copyOf(jvcs));
             }
         }
+        setAttribute(LAYOUT, names);
     }
 
     @Override
     public void setElasticGroup(Integer groupId) {
         setAttribute(ELASTIC_GROUP_ID, groupId);
-        for (JavaVirtualMachine jvm : layout.keySet()) {
-            // create the elastic group if not exists
-        }
-        for (JavaVirtualContainer jvc : layout.values()) {
-            // add it to the elstic group
-        }
+        rebalance();
     }
 
     @Override
@@ -110,16 +217,183 @@ public class WaratekApplicationGroupImpl extends BasicGroupImpl implements Warat
     @Override
     public void setElasticGroupHeap(Long heapSize) {
         setAttribute(ELASTIC_MEMORY, heapSize);
-        for (JavaVirtualMachine jvm : layout.keySet()) {
-            // create the elastic group if not exists
-            // set the elastic group size
+        rebalance();
+    }
+
+    @Override
+    public Long getElasticGroupHeap() {
+        Long heapSize = getAttribute(ELASTIC_MEMORY);
+        return (heapSize != null) ? heapSize : getConfig(ELASTIC_MEMORY);
+    }
+
+    /** Submit a rebalance of the elastic heap, or defer it for a period if one is already running. */
+    private void rebalance() {
+        if (getElasticGroup() == null || getElasticGroupHeap() == null || getElasticGroupHeap() <= 0) return;
+        if (!rebalancing.compareAndSet(false, true)) {
+            deferRebalance(getConfig(ELASTIC_REBALANCE_PERIOD).toMilliseconds());
+            return;
         }
-        for (JavaVirtualContainer jvc : layout.values()) {
-            // add it to the elstic group
+        lastRebalance.set(System.currentTimeMillis());
+        try {
+            Entities.submit(this, Tasks.<Void>builder()
+                    .name("Rebalancing elastic heap")
+                    .body(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                allocateElasticHeap();
+                            } finally {
+                                rebalancing.set(false);
+                            }
+                        }
+                    })
+                    .build());
+        } catch (RuntimeException e) {
+            rebalancing.set(false);
+            throw e;
         }
     }
 
-    @Override
-    public Long getElasticGroupHeap() { return getAttribute(ELASTIC_MEMORY); }
+    /**
+     * Rebalance once the delay has passed, so that heap changes arriving within the
+     * {@link #ELASTIC_REBALANCE_PERIOD period} are acted on; only one rebalance is deferred
+     * at a time.
+     */
+    private void deferRebalance(long delay) {
+        if (!deferred.compareAndSet(false, true)) return;
+        Callable<Task<?>> job = new Callable<Task<?>>() {
+            @Override
+            public Task<?> call() {
+                return Tasks.<Void>builder()
+                        .name("Deferred elastic heap rebalance")
+                        .body(new Runnable() {
+                            @Override
+                            public void run() {
+                                deferred.set(false);
+                                rebalance();
+                            }
+                        })
+                        .build();
+            }
+        };
+        try {
+            Entities.submit(this, new ScheduledTask(MutableMap.of("delay", Duration.millis(delay), "maxIterations", 1), job));
+        } catch (RuntimeException e) {
+            deferred.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Share the elastic heap across the JVCs in the group.
+     * <p>
+     * A {@link #ELASTIC_RESERVED_FRACTION fraction} of the heap is split evenly, and the
+     * rest in proportion to each JVC's used heap, so busy JVCs borrow from idle ones. The
+     * {@code MaximumHeapMemorySize} of a JVC is only changed when its share moves by more
+     * than {@link #MIN_HEAP_CHANGE}, and the task waits for all the changes to be made.
+     *
+     * @see #allocateHeap(Map, long, double)
+     */
+    private void allocateElasticHeap() {
+        List<JavaVirtualContainer> jvcs;
+        synchronized (layout) {
+            jvcs = ImmutableList.copyOf(layout.values());
+        }
+        if (jvcs.isEmpty()) return;
+
+        Map<JavaVirtualContainer, Long> used = Maps.newLinkedHashMap();
+        for (JavaVirtualContainer jvc : jvcs) {
+            Long value = jvc.getAttribute(UsesJavaMXBeans.USED_HEAP_MEMORY);
+            used.put(jvc, (value == null) ? 0L : Math.max(0L, value));
+        }
+        Map<JavaVirtualContainer, Long> sizes = allocateHeap(used, getElasticGroupHeap(), getConfig(ELASTIC_RESERVED_FRACTION));
+
+        Map<JavaVirtualContainer, Task<Long>> tasks = Maps.newLinkedHashMap();
+        for (Map.Entry<JavaVirtualContainer, Long> entry : sizes.entrySet()) {
+            JavaVirtualContainer jvc = entry.getKey();
+            long size = entry.getValue();
+            Long current = jvc.getAttribute(JavaVirtualContainer.MAX_HEAP_SIZE);
+            if (current != null && current > 0 && Math.abs(size - current) <= current * MIN_HEAP_CHANGE) continue;
+            if (log.isDebugEnabled()) log.debug("Elastic group {} allocating {} to {}", new Object[] { getElasticGroup(), Strings.makeSizeString(size), jvc });
+            tasks.put(jvc, Entities.invokeEffector(this, jvc, JavaVirtualContainer.ALLOCATE_HEAP, MutableMap.of("size", size)));
+        }
+        for (Map.Entry<JavaVirtualContainer, Task<Long>> entry : tasks.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.warn("Elastic group {} failed to allocate heap to {}: {}", new Object[] { getElasticGroup(), entry.getKey(), e.getMessage() });
+            }
+        }
+    }
+
+    /**
+     * Compute the heap size of each member from its used heap.
+     * <p>
+     * Each member gets the {@code reserved} fraction of the budget split evenly, plus the
+     * rest in proportion to its used heap. No member is given less than its used heap plus
+     * {@link #HEAP_HEADROOM}; members that would be are held at that floor, and the rest of
+     * the budget is shared again among the others. If the floors alone exceed the budget,
+     * every member gets its floor. If the members left to share the rest have no weight,
+     * it is split evenly between them.
+     */
+    static <T> Map<T, Long> allocateHeap(Map<T, Long> used, long budget, double reserved) {
+        Map<T, Long> sizes = Maps.newLinkedHashMap();
+        if (used.isEmpty()) return sizes;
+        reserved = Math.max(0d, Math.min(1d, reserved));
+
+        long totalUsed = 0L;
+        for (Long usage : used.values()) totalUsed += usage;
+        Map<T, Double> weights = Maps.newLinkedHashMap();
+        Map<T, Long> floors = Maps.newLinkedHashMap();
+        long totalFloor = 0L;
+        for (Map.Entry<T, Long> entry : used.entrySet()) {
+            double share = (totalUsed > 0) ? (double) entry.getValue() / totalUsed : 1d / used.size();
+            weights.put(entry.getKey(), reserved / used.size() + (1d - reserved) * share);
+            long floor = (long) Math.ceil(entry.getValue() * (1d + HEAP_HEADROOM));
+            floors.put(entry.getKey(), floor);
+            totalFloor += floor;
+        }
+        if (totalFloor >= budget) {
+            log.warn("Elastic heap budget {} is less than used heap plus headroom {}", Strings.makeSizeString(budget), Strings.makeSizeString(totalFloor));
+            return floors;
+        }
+
+        // Hold members at their floor until the rest of the budget covers everyone else
+        Map<T, Double> free = Maps.newLinkedHashMap(weights);
+        long remaining = budget;
+        boolean clamped = true;
+        while (clamped && !free.isEmpty()) {
+            clamped = false;
+            double totalWeight = 0d;
+            for (Double weight : free.values()) totalWeight += weight;
+            for (Iterator<Map.Entry<T, Double>> i = free.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<T, Double> entry = i.next();
+                long size = share(remaining, entry.getValue(), totalWeight, free.size());
+                long floor = floors.get(entry.getKey());
+                if (size < floor) {
+                    sizes.put(entry.getKey(), floor);
+                    remaining -= floor;
+                    i.remove();
+                    clamped = true;
+                    break;
+                }
+            }
+        }
+        double totalWeight = 0d;
+        for (Double weight : free.values()) totalWeight += weight;
+        for (Map.Entry<T, Double> entry : free.entrySet()) {
+            sizes.put(entry.getKey(), share(remaining, entry.getValue(), totalWeight, free.size()));
+        }
+
+        // Keep the original order of the members
+        Map<T, Long> result = Maps.newLinkedHashMap();
+        for (T member : used.keySet()) result.put(member, sizes.get(member));
+        return result;
+    }
+
+    private static long share(long remaining, double weight, double totalWeight, int count) {
+        return (totalWeight > 0d) ? (long) (remaining * weight / totalWeight) : remaining / count;
+    }
 
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.NoMachinesAvailableException;
+import brooklyn.location.waratek.WaratekMachineLocation;
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Placement strategy that packs containers onto JVMs by heap, CPU and JVC slots.
+ * <p>
+ * Each JVM is scored by its dominant share, the largest fraction of its heap or JVC
+ * slots that would be in use after the placement, and the feasible JVM with the highest
+ * share is chosen (best-fit). A placement that would allocate more heap than the JVM's
+ * {@link JavaVirtualMachine#HEAP_SIZE} is rejected, and JVMs whose average CPU usage is
+ * above the limit are only used when nothing else fits. More JVMs are added when the
+ * existing ones have no capacity left.
+ *
+ * @see WaratekNodePlacementStrategy
+ */
+public class WaratekBinPackingPlacementStrategy extends WaratekNodePlacementStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WaratekBinPackingPlacementStrategy.class);
+
+    public static final double DEFAULT_CPU_LIMIT = 0.8d;
+
+    private final Long containerHeapSize;
+    private final double cpuLimit;
+
+    /** Uses the {@link JavaVirtualContainer#MAX_HEAP_SIZE} configured for the JVCs on each JVM. */
+    public WaratekBinPackingPlacementStrategy() {
+        this(null, DEFAULT_CPU_LIMIT);
+    }
+
+    /**
+     * @param containerHeapSize heap required by each new container, in bytes, or {@code null} to use the JVC configuration
+     * @param cpuLimit average CPU usage above which a JVM is avoided, between 0 and 1
+     */
+    public WaratekBinPackingPlacementStrategy(Long containerHeapSize, double cpuLimit) {
+        this(null, containerHeapSize, cpuLimit);
+    }
+
+    /**
+     * @param infrastructure the infrastructure to add JVMs to, or {@code null} to use the infrastructure of the locations
+     * @see #WaratekBinPackingPlacementStrategy(Long, double)
+     */
+    public WaratekBinPackingPlacementStrategy(WaratekInfrastructure infrastructure, Long containerHeapSize, double cpuLimit) {
+        super(infrastructure);
+        this.containerHeapSize = containerHeapSize;
+        this.cpuLimit = cpuLimit;
+    }
+
+    @Override
+    protected List<Location> placeContainers(List<WaratekMachineLocation> available, int numToAdd) {
+        Map<WaratekMachineLocation, Usage> usage = Maps.newLinkedHashMap();
+        for (WaratekMachineLocation machine : available) {
+            usage.put(machine, usage(machine));
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Placing {} containers on {}", numToAdd, usage.values());
+        }
+
+        List<Location> result = Lists.newArrayList();
+        for (int i = 0; i < numToAdd; i++) {
+            WaratekMachineLocation best = choose(usage, cpuLimit);
+            if (best == null) {
+                throw Exceptions.propagate(new NoMachinesAvailableException(String.format("No JVM has capacity for container %d of %d; usage %s", i + 1, numToAdd, usage.values())));
+            }
+            usage.get(best).place();
+            result.add(best);
+        }
+        return result;
+    }
+
+    /**
+     * Choose the feasible JVM with the highest dominant share after placement, preferring
+     * JVMs below the CPU limit.
+     *
+     * @return the chosen key, or {@code null} if no JVM has capacity
+     */
+    static <T> T choose(Map<T, Usage> usage, double cpuLimit) {
+        T best = null;
+        double bestShare = 0d;
+        boolean bestCool = false;
+        for (Map.Entry<T, Usage> entry : usage.entrySet()) {
+            Usage candidate = entry.getValue();
+            if (!candidate.fits()) continue;
+            double share = candidate.shareAfterPlacement();
+            boolean cool = candidate.cpu < cpuLimit;
+            if (best == null || (cool && !bestCool) || (cool == bestCool && share > bestShare)) {
+                best = entry.getKey();
+                bestShare = share;
+                bestCool = cool;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    protected int getAvailableCapacity(WaratekMachineLocation machine) {
+        return usage(machine).capacity();
+    }
+
+    @Override
+    protected int getNewJvmCapacity(WaratekInfrastructure infrastructure) {
+        int maxSize = super.getNewJvmCapacity(infrastructure);
+        long required = getContainerHeapSize(infrastructure);
+        Long heapSize = getNewJvmHeapSize(infrastructure);
+        if (required <= 0 || heapSize == null || heapSize <= 0) {
+            return maxSize;
+        }
+        return (int) Math.max(1L, Math.min(maxSize, heapSize / required));
+    }
+
+    private Long getNewJvmHeapSize(WaratekInfrastructure infrastructure) {
+        EntitySpec<?> spec = infrastructure.getConfig(WaratekInfrastructure.JVM_SPEC);
+        Object configured = (spec == null) ? null : spec.getConfig().get(JavaVirtualMachine.HEAP_SIZE);
+        if (configured instanceof Number) return ((Number) configured).longValue();
+        return infrastructure.getConfig(JavaVirtualMachine.HEAP_SIZE);
+    }
+
+    /**
+     * The heap needed by a new container, or zero if unlimited.
+     *
+     * @param entity the JVM, or the infrastructure for a new JVM
+     */
+    protected long getContainerHeapSize(Entity entity) {
+        if (containerHeapSize != null) return containerHeapSize;
+        EntitySpec<?> spec = entity.getConfig(JavaVirtualMachine.JVC_SPEC);
+        Object configured = (spec == null) ? null : spec.getConfig().get(JavaVirtualContainer.MAX_HEAP_SIZE.getConfigKey());
+        if (configured instanceof Number) return ((Number) configured).longValue();
+        Long fallback = JavaVirtualContainer.MAX_HEAP_SIZE.getConfigKey().getDefaultValue();
+        return (fallback == null) ? 0L : fallback;
+    }
+
+    @Override
+    public String toString() {
+        return "Waratek bin-packing NodePlacementStrategy";
+    }
+
+    /**
+     * The current usage of a JVM, from its aggregate sensors.
+     * <p>
+     * Heap is allocated to JVCs with a running entity, or reserved for them, unless more is
+     * actually used. JVCs with no heap limit are counted at the size required for a new container.
+     */
+    private Usage usage(WaratekMachineLocation machine) {
+        JavaVirtualMachine jvm = machine.getOwner();
+        long required = getContainerHeapSize(jvm);
+        Long heapSize = jvm.getConfig(JavaVirtualMachine.HEAP_SIZE);
+        Long allocatedHeap = jvm.getAttribute(JavaVirtualMachine.ALLOCATED_HEAP_MEMORY);
+        Integer unlimited = jvm.getAttribute(JavaVirtualMachine.UNLIMITED_HEAP_JVCS);
+        Long used = jvm.getAttribute(WaratekAttributes.TOTAL_HEAP_MEMORY);
+        Double cpu = WaratekUtils.cpuUsageFraction(jvm.getAttribute(WaratekAttributes.AVERAGE_CPU_USAGE));
+
+        long allocated = (long) (machine.getReservedJvcCount() + (unlimited == null ? 0 : unlimited)) * required
+                + (allocatedHeap == null ? 0L : allocatedHeap);
+        return new Usage(jvm.getJvmName(), required, (heapSize == null) ? 0L : heapSize, machine.getMaxSize(),
+                machine.getCurrentJvcCount(), Math.max(allocated, (used == null) ? 0L : used), (cpu == null) ? 0d : cpu);
+    }
+
+    /** Resource usage of a JVM, updated as containers are placed on it. */
+    static class Usage {
+        private final String name;
+        private final long required;
+        private final long heapSize;
+        private final int maxSize;
+        private final double cpu;
+        private long heap;
+        private int slots;
+
+        /**
+         * @param required heap needed by each new container, or zero if unlimited
+         * @param heapSize heap size of the JVM, or zero if unlimited
+         * @param heap heap already in use or allocated
+         * @param cpu average CPU usage, between 0 and 1
+         */
+        Usage(String name, long required, long heapSize, int maxSize, int slots, long heap, double cpu) {
+            this.name = name;
+            this.required = required;
+            this.heapSize = heapSize;
+            this.maxSize = maxSize;
+            this.slots = slots;
+            this.heap = heap;
+            this.cpu = cpu;
+        }
+
+        public boolean fits() {
+            return slots < maxSize && (!isHeapLimited() || heap + required <= heapSize);
+        }
+
+        public int capacity() {
+            int free = Math.max(0, maxSize - slots);
+            if (!isHeapLimited()) return free;
+            return (int) Math.min(free, Math.max(0L, (heapSize - heap) / required));
+        }
+
+        public double shareAfterPlacement() {
+            double slotShare = (double) (slots + 1) / maxSize;
+            double heapShare = isHeapLimited() ? (double) (heap + required) / heapSize : 0d;
+            return Math.max(slotShare, heapShare);
+        }
+
+        public void place() {
+            slots++;
+            heap += required;
+        }
+
+        private boolean isHeapLimited() {
+            return required > 0 && heapSize > 0;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("jvm", name)
+                    .add("slots", slots + "/" + maxSize)
+                    .add("heap", heap + "/" + heapSize)
+                    .add("cpu", cpu)
+                    .toString();
+        }
+    }
+
+}
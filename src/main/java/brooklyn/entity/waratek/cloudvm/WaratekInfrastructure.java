@@ -51,9 +51,17 @@ public interface WaratekInfrastructure extends BasicStartable, Resizable, Locati
     @SetFromFlag("minJvm")
     ConfigKey<Integer> JVM_CLUSTER_MIN_SIZE = ConfigKeys.newConfigKeyWithPrefix("waratek.jvm.", DynamicCluster.INITIAL_SIZE);
 
+    @SetFromFlag("jvmQuorum")
+    ConfigKey<Integer> JVM_CLUSTER_QUORUM = ConfigKeys.newIntegerConfigKey("waratek.jvm.quorum",
+            "Number of JVMs that must be up for the infrastructure to be up (defaults to a majority of the initial size)");
+
     @SetFromFlag("maxJvc")
     ConfigKey<Integer> JVC_CLUSTER_MAX_SIZE = ConfigKeys.newIntegerConfigKey("waratek.jvc.maxSize", "Maximum size of a JVC cluster", 4);
 
+    @SetFromFlag("binPacking")
+    ConfigKey<Boolean> BIN_PACKING_PLACEMENT = ConfigKeys.newBooleanConfigKey("waratek.jvc.binPacking",
+            "Place new JVCs on the fullest JVMs that fit their heap and JVC slots, rather than spreading them evenly", Boolean.FALSE);
+
     @SetFromFlag("jvmSpec")
     BasicAttributeSensorAndConfigKey<EntitySpec> JVM_SPEC = new BasicAttributeSensorAndConfigKey<EntitySpec>(
             EntitySpec.class, "waratek.jvm.spec", "Specification to use when creating child JVMs",
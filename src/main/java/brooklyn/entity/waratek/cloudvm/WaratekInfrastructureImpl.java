@@ -15,18 +15,20 @@
  */
 package brooklyn.entity.waratek.cloudvm;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.annotation.Nullable;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.enricher.Enrichers;
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.BasicGroup;
 import brooklyn.entity.basic.BasicStartableImpl;
 import brooklyn.entity.basic.DynamicGroup;
 import brooklyn.entity.basic.Entities;
@@ -35,7 +37,6 @@ import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.basic.SoftwareProcess.ChildStartableMode;
 import brooklyn.entity.group.Cluster;
 import brooklyn.entity.group.DynamicCluster;
-import brooklyn.entity.group.DynamicMultiGroup;
 import brooklyn.entity.java.UsesJmx;
 import brooklyn.entity.java.UsesJmx.JmxAgentModes;
 import brooklyn.entity.proxying.EntitySpec;
@@ -45,20 +46,29 @@ import brooklyn.event.SensorEventListener;
 import brooklyn.location.Location;
 import brooklyn.location.LocationDefinition;
 import brooklyn.location.basic.BasicLocationDefinition;
-import brooklyn.location.waratek.WaratekContainerLocation;
 import brooklyn.location.waratek.WaratekLocation;
 import brooklyn.location.waratek.WaratekResolver;
 import brooklyn.management.LocationManager;
+import brooklyn.management.Task;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.repeat.Repeater;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
 
-import com.google.common.base.Function;
 import com.google.common.base.Joiner;
-import com.google.common.base.Optional;
-import com.google.common.base.Predicate;
+import com.google.common.base.Objects;
 import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class WaratekInfrastructureImpl extends BasicStartableImpl implements WaratekInfrastructure {
 
@@ -68,26 +78,22 @@ public class WaratekInfrastructureImpl extends BasicStartableImpl implements War
 
     private static final Logger log = LoggerFactory.getLogger(WaratekInfrastructureImpl.class);
 
+    private static final String APPLICATIONS_NAME = "Waratek Java Applications";
+    private static final String ENTITIES_NAME = "Waratek Java Entities";
+
     private DynamicCluster virtualMachines;
     private DynamicGroup fabric;
-    private DynamicMultiGroup applications, entities;
+    private BasicGroup applications, entities;
 
     private volatile AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean rebound = new AtomicBoolean(false);
 
-    private Predicate<Entity> sameInfrastructure = new Predicate<Entity>() {
-        @Override
-        public boolean apply(@Nullable Entity input) {
-            // Check if entity is deployed to a WaratekContainerLocation
-            Optional<Location> lookup = Iterables.tryFind(input.getLocations(), Predicates.instanceOf(WaratekContainerLocation.class));
-            if (lookup.isPresent()) {
-                WaratekContainerLocation container = (WaratekContainerLocation) lookup.get();
-                // Only containers that are part of this infrastructure
-                return getId().equals(container.getJavaVirtualMachine().getInfrastructure().getId());
-            } else {
-                return false;
-            }
-        }
-    };
+    /* Guarded by buckets; rebuilt from the children and JVCs on rebind. */
+
+    private final Map<Entity, Entity> placements = Maps.newHashMap();
+    private final Multiset<Entity> placedEntities = HashMultiset.create();
+    private final Map<String, Entity> buckets = Maps.newHashMap();
+    private final Multimap<Entity, String> entityBuckets = HashMultimap.create();
 
     @Override
     public void init() {
@@ -108,29 +114,11 @@ public class WaratekInfrastructureImpl extends BasicStartableImpl implements War
                 .configure(DynamicGroup.ENTITY_FILTER, Predicates.instanceOf(JavaVirtualContainer.class))
                 .displayName("All Java Virtual Containers"));
 
-        applications = addChild(EntitySpec.create(DynamicMultiGroup.class)
-                .configure(DynamicMultiGroup.ENTITY_FILTER, sameInfrastructure)
-                .configure(DynamicMultiGroup.RESCAN_INTERVAL, 15L)
-                .configure(DynamicMultiGroup.BUCKET_SPEC, EntitySpec.create(WaratekApplicationGroup.class))
-                .configure(DynamicMultiGroup.BUCKET_FUNCTION, new Function<Entity, String>() {
-                        @Override
-                        public String apply(@Nullable Entity input) {
-                            return input.getApplication().getDisplayName();
-                        }
-                    })
-                .displayName("Waratek Java Applications"));
+        applications = addChild(EntitySpec.create(BasicGroup.class)
+                .displayName(APPLICATIONS_NAME));
 
-        entities = addChild(EntitySpec.create(DynamicMultiGroup.class)
-                .configure(DynamicMultiGroup.ENTITY_FILTER, sameInfrastructure)
-                .configure(DynamicMultiGroup.RESCAN_INTERVAL, 15L)
-                .configure(DynamicMultiGroup.BUCKET_SPEC, EntitySpec.create(WaratekApplicationGroup.class))
-                .configure(DynamicMultiGroup.BUCKET_FUNCTION, new Function<Entity, String>() {
-                        @Override
-                        public String apply(@Nullable Entity input) {
-                            return input.getEntityType().getName();
-                        }
-                    })
-                .displayName("Waratek Java Entities"));
+        entities = addChild(EntitySpec.create(BasicGroup.class)
+                .displayName(ENTITIES_NAME));
 
         if (Entities.isManaged(this)) {
             Entities.manage(virtualMachines);
@@ -191,6 +179,60 @@ public class WaratekInfrastructureImpl extends BasicStartableImpl implements War
                 .from(virtualMachines)
                 .build());
 
+        subscribeToPlacements();
+    }
+
+    /**
+     * Restore the references to our children and the subscriptions. The buckets are
+     * rebuilt once management has started, as the rebound groups are not yet managed.
+     */
+    @Override
+    public void rebind() {
+        super.rebind();
+
+        for (Entity child : getChildren()) {
+            if (child instanceof DynamicCluster) {
+                virtualMachines = (DynamicCluster) child;
+            } else if (child instanceof DynamicGroup) {
+                fabric = (DynamicGroup) child;
+            } else if (child instanceof BasicGroup && APPLICATIONS_NAME.equals(child.getDisplayName())) {
+                applications = (BasicGroup) child;
+            } else if (child instanceof BasicGroup && ENTITIES_NAME.equals(child.getDisplayName())) {
+                entities = (BasicGroup) child;
+            }
+        }
+        started.set(getAttribute(DYNAMIC_LOCATION) != null);
+
+        subscribeToPlacements();
+        rebound.set(true);
+    }
+
+    /** After rebind, rebuild the buckets from the application groups and the entities currently in our JVCs. */
+    @Override
+    public void onManagementStarted() {
+        super.onManagementStarted();
+        if (!rebound.compareAndSet(true, false)) return;
+        Entities.submit(this, Tasks.<Void>builder()
+                .name("Rebuilding application buckets")
+                .body(new Runnable() {
+                    @Override
+                    public void run() {
+                        rebuildBuckets();
+                    }
+                })
+                .build());
+    }
+
+    private void subscribeToPlacements() {
+        // Bucket entities as they are placed into (or leave) the JVCs of this infrastructure
+        subscribe(null, JavaVirtualContainer.ENTITY, new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                Entity jvc = event.getSource();
+                if (isOurs(jvc)) updateBuckets(jvc, event.getValue());
+            }
+        });
+
         subscribeToMembers(virtualMachines, SERVICE_UP, new SensorEventListener<Boolean>() {
             @Override
             public void onEvent(SensorEvent<Boolean> event) {
@@ -199,24 +241,160 @@ public class WaratekInfrastructureImpl extends BasicStartableImpl implements War
         });
     }
 
+    private boolean isOurs(Entity jvc) {
+        JavaVirtualMachine jvm = jvc.getConfig(JavaVirtualContainer.JVM);
+        return jvm != null && jvm.getInfrastructure() != null && getId().equals(jvm.getInfrastructure().getId());
+    }
+
+    /**
+     * Rebuild the buckets and placements, which are only held in memory, from the existing
+     * application groups and the {@link JavaVirtualContainer#ENTITY entity} in each JVC.
+     * Groups are reused rather than duplicated, and entities that have moved or gone since
+     * they were bucketed are removed.
+     */
+    private void rebuildBuckets() {
+        List<Entity> created = Lists.newArrayList();
+        List<Entity> emptied = Lists.newArrayList();
+        synchronized (buckets) {
+            buckets.clear();
+            entityBuckets.clear();
+            placements.clear();
+            placedEntities.clear();
+
+            for (BasicGroup parent : Arrays.asList(applications, entities)) {
+                if (parent == null) continue;
+                for (Entity child : parent.getChildren()) {
+                    if (!(child instanceof WaratekApplicationGroup)) continue;
+                    String key = getBucketKey(parent, child.getDisplayName());
+                    buckets.put(key, child);
+                    for (Entity member : ((WaratekApplicationGroup) child).getMembers()) {
+                        entityBuckets.put(member, key);
+                    }
+                }
+            }
+
+            for (Entity jvc : Iterables.filter(getManagementContext().getEntityManager().getEntities(), Predicates.instanceOf(JavaVirtualContainer.class))) {
+                Entity entity = jvc.getAttribute(JavaVirtualContainer.ENTITY);
+                if (entity != null && isOurs(jvc) && Entities.isManaged(entity)) {
+                    placements.put(jvc, entity);
+                    placedEntities.add(entity);
+                }
+            }
+
+            for (Entity member : ImmutableList.copyOf(entityBuckets.keySet())) {
+                if (!placedEntities.contains(member)) removeFromBuckets(member, emptied);
+            }
+            for (Entity entity : placedEntities.elementSet()) {
+                if (!entityBuckets.containsKey(entity)) addToBuckets(entity, created);
+            }
+        }
+        manageBuckets(created, emptied);
+        if (log.isDebugEnabled()) log.debug("Rebuilt {} buckets for {} entities on {}", new Object[] { buckets.size(), placedEntities.elementSet().size(), this });
+    }
+
+    /**
+     * Move the entities running in a JVC between the application and entity type buckets.
+     */
+    private void updateBuckets(Entity jvc, Entity entity) {
+        List<Entity> created = Lists.newArrayList();
+        List<Entity> emptied = Lists.newArrayList();
+        synchronized (buckets) {
+            Entity previous = (entity == null) ? placements.remove(jvc) : placements.put(jvc, entity);
+            if (Objects.equal(previous, entity)) return;
+            if (previous != null && placedEntities.remove(previous, 1) == 1) {
+                removeFromBuckets(previous, emptied);
+            }
+            if (entity != null && placedEntities.add(entity, 1) == 0) {
+                addToBuckets(entity, created);
+            }
+        }
+        manageBuckets(created, emptied);
+    }
+
+    /**
+     * Manage the new buckets and unmanage the empty ones, outside the lock on the buckets.
+     * A bucket emptied again before it was managed has already been removed from its parent.
+     */
+    private void manageBuckets(List<Entity> created, List<Entity> emptied) {
+        for (Entity bucket : created) {
+            if (bucket.getParent() != null && Entities.isManaged(bucket.getParent()) && !Entities.isManaged(bucket)) {
+                Entities.manage(bucket);
+            }
+        }
+        for (Entity bucket : emptied) {
+            if (Entities.isManaged(bucket)) Entities.unmanage(bucket);
+        }
+    }
+
+    /** Add the entity to its buckets, recording their keys so it can be removed even after it is unmanaged. */
+    private void addToBuckets(Entity entity, List<Entity> created) {
+        addToBucket(applications, entity.getApplication().getDisplayName(), entity, created);
+        addToBucket(entities, entity.getEntityType().getName(), entity, created);
+    }
+
+    private void removeFromBuckets(Entity entity, List<Entity> emptied) {
+        for (String key : entityBuckets.removeAll(entity)) {
+            removeFromBucket(key, entity, emptied);
+        }
+    }
+
+    private String getBucketKey(BasicGroup parent, String name) {
+        return parent.getId() + ":" + name;
+    }
+
+    private void addToBucket(BasicGroup parent, String name, Entity entity, List<Entity> created) {
+        String key = getBucketKey(parent, name);
+        Entity bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = parent.addChild(EntitySpec.create(WaratekApplicationGroup.class).displayName(name));
+            created.add(bucket);
+            buckets.put(key, bucket);
+        }
+        ((WaratekApplicationGroup) bucket).addMember(entity);
+        entityBuckets.put(entity, key);
+    }
+
+    private void removeFromBucket(String key, Entity entity, List<Entity> emptied) {
+        Entity bucket = buckets.get(key);
+        if (bucket == null) return;
+        ((WaratekApplicationGroup) bucket).removeMember(entity);
+        if (((WaratekApplicationGroup) bucket).getMembers().isEmpty()) {
+            buckets.remove(key);
+            if (bucket.getParent() != null) bucket.getParent().removeChild(bucket);
+            emptied.add(bucket);
+        }
+    }
+
     /**
      * Caclulates the {@link Startable#SERVICE_UP} sensor value.
      * <p>
      * Returns {@code true} if the infrastructure is started and
-     * all JVMs are not {@link Lifecycle#ON_FIRE on fire}.
+     * a {@link #JVM_CLUSTER_QUORUM quorum} of JVMs are up.
      */
     public boolean calculateServiceUp() {
         if (started.get()) {
             List<Entity> jvms = getJvmList();
             if (jvms.isEmpty()) return true;
 
-            for (Entity jvm : jvms) {
-                if (Boolean.TRUE.equals(jvm.getAttribute(SERVICE_UP))) return true;
-            }
+            return countJvmsUp(jvms) >= Math.min(getQuorum(), jvms.size());
         }
         return false;
     }
 
+    private int countJvmsUp(List<Entity> jvms) {
+        int up = 0;
+        for (Entity jvm : jvms) {
+            if (Boolean.TRUE.equals(jvm.getAttribute(SERVICE_UP))) up++;
+        }
+        return up;
+    }
+
+    private int getQuorum() {
+        Integer quorum = getConfig(JVM_CLUSTER_QUORUM);
+        if (quorum == null) quorum = (getConfig(JVM_CLUSTER_MIN_SIZE) / 2) + 1;
+        return Math.max(1, quorum);
+    }
+
     @Override
     public List<Entity> getJvmList() {
         if (virtualMachines == null) {
@@ -242,7 +420,7 @@ public class WaratekInfrastructureImpl extends BasicStartableImpl implements War
     public DynamicGroup getContainerFabric() { return fabric; }
 
     @Override
-    public void start(Collection<? extends Location> locations) {
+    public void start(final Collection<? extends Location> locations) {
         if (started.compareAndSet(false, true)) {
             // TODO support multiple locations
 //            Location provisioner = new AggregatingMachineProvisioningLocation(MutableMap.of("provisioners", Iterables.filter(locations, MachineProvisioningLocation.class)));
@@ -256,8 +434,58 @@ public class WaratekInfrastructureImpl extends BasicStartableImpl implements War
 
             createLocation(flags);
 
-            super.start(locations);
+            // Start the JVMs in parallel, returning once a quorum is up and leaving the rest starting in the background
+            Task<Void> startup = Entities.submit(this, Tasks.<Void>builder()
+                    .name("Starting JVMs")
+                    .body(new Runnable() {
+                        @Override
+                        public void run() {
+                            WaratekInfrastructureImpl.super.start(locations);
+                        }
+                    })
+                    .build());
+            waitForQuorum(startup);
+        }
+    }
+
+    private void waitForQuorum(final Task<Void> startup) {
+        final int quorum = getQuorum();
+        Repeater.create("Wait for JVM quorum")
+                .every(Duration.ONE_SECOND)
+                .until(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return startup.isDone() || countJvmsUp(getJvmList()) >= quorum;
+                    }
+                })
+                .run();
+
+        if (startup.isDone()) {
+            // Propagates any failure to start
+            startup.getUnchecked();
+        } else {
+            log.info("Infrastructure {} has quorum of {} JVMs up, remaining JVMs starting in background", this, quorum);
+            startup.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    onBackgroundStartupDone(startup);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        setAttribute(SERVICE_UP, calculateServiceUp());
+    }
+
+    /** Record a failure of the JVMs left starting in the background, since nothing else waits for them. */
+    private void onBackgroundStartupDone(Task<Void> startup) {
+        if (!startup.isError() || !started.get()) return;
+        try {
+            startup.get();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Infrastructure " + this + " failed starting JVMs in background", e);
         }
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.ON_FIRE);
+        setAttribute(SERVICE_UP, calculateServiceUp());
     }
 
     /**
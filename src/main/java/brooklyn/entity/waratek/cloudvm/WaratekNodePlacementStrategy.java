@@ -18,6 +18,8 @@ package brooklyn.entity.waratek.cloudvm;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
@@ -25,14 +27,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.group.DynamicCluster;
 import brooklyn.entity.group.zoneaware.BalancingNodePlacementStrategy;
 import brooklyn.entity.trait.Identifiable;
 import brooklyn.location.Location;
+import brooklyn.location.NoMachinesAvailableException;
 import brooklyn.location.waratek.WaratekMachineLocation;
+import brooklyn.location.waratek.WaratekVirtualLocation;
+import brooklyn.management.Task;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.repeat.Repeater;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -56,48 +67,219 @@ public class WaratekNodePlacementStrategy extends BalancingNodePlacementStrategy
         }
     };
 
+    private final Object growthMutex = new Object[0];
+    private final List<Growth> growths = Lists.newArrayList(); // guarded by growthMutex
+    private final WaratekInfrastructure infrastructure;
+
+    public WaratekNodePlacementStrategy() {
+        this(null);
+    }
+
+    /**
+     * @param infrastructure the infrastructure to add JVMs to, or {@code null} to use the infrastructure of the locations
+     */
+    public WaratekNodePlacementStrategy(WaratekInfrastructure infrastructure) {
+        this.infrastructure = infrastructure;
+    }
+
     @Override
     public List<Location> locationsForAdditions(Multimap<Location, Entity> currentMembers, Collection<? extends Location> locs, int numToAdd) {
-        if (locs.isEmpty() && numToAdd > 0) {
+        WaratekInfrastructure infrastructure = getInfrastructure(locs);
+        if (locs.isEmpty() && infrastructure == null && numToAdd > 0) {
             throw new IllegalArgumentException("No locations supplied, when requesting locations for "+numToAdd+" nodes");
         }
 
         List<WaratekMachineLocation> available = Lists.newArrayList(Iterables.filter(locs,  WaratekMachineLocation.class));
-        int remaining = numToAdd;
-        for (WaratekMachineLocation machine : available) {
-            remaining -= machine.getAvailableJvcCount();
-        }
+        int remaining = numToAdd - getAvailableCapacity(available);
         if (LOG.isDebugEnabled()) {
             LOG.debug("Requested {}, Need {} more from new JVMs, Current JVMs {}",
                     new Object[] { numToAdd, remaining, Iterables.toString(Iterables.transform(locs, identity())) });
         }
 
         if (remaining > 0) {
-            // FIXME what happens if there are no JVMs available?
-            WaratekMachineLocation machine = Iterables.get(available, 0);
+            Preconditions.checkState(infrastructure != null, "No infrastructure to add JVMs to for %s nodes", remaining);
+            List<Growth> waitFor = Lists.newArrayList();
+            synchronized (growthMutex) {
+                // Include JVMs added by other requests while we were waiting
+                for (Entity entity : infrastructure.getJvmList()) {
+                    WaratekMachineLocation machine = ((JavaVirtualMachine) entity).getDynamicLocation();
+                    if (machine != null && !available.contains(machine)) available.add(machine);
+                }
+                remaining = numToAdd - getAvailableCapacity(available);
 
-            // Grow the JVM cluster; based on max number of JVCs
-            int maxSize = machine.getMaxSize();
-            int delta = (remaining / maxSize) + (remaining % maxSize > 0 ? 1 : 0);
-            Collection<Entity> added = machine.getWaratekInfrastructure().getVirtualMachineCluster().resizeByDelta(delta);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Added {} JVMs: {}", delta, Iterables.toString(Iterables.transform(added, identity())));
+                // Share JVMs that other requests are still adding, then add more if needed
+                for (Growth growth : growths) {
+                    if (remaining <= 0) break;
+                    int claimed = growth.claim(remaining);
+                    if (claimed > 0) {
+                        waitFor.add(growth);
+                        remaining -= claimed;
+                    }
+                }
+                if (remaining > 0) {
+                    Growth growth = growJvmCluster(infrastructure, remaining);
+                    growths.add(growth);
+                    waitFor.add(growth);
+                }
             }
 
-            // Add the newly created locations for each JVM
-            // TODO wait until all JVMs have started up?
-            Collection<WaratekMachineLocation> jvms = Collections2.transform(added, new Function<Entity, WaratekMachineLocation>() {
-                @Override
-                public WaratekMachineLocation apply(@Nullable Entity input) {
-                    return ((JavaVirtualMachine) input).getDynamicLocation();
+            // Wait for the new JVM locations without holding the mutex
+            for (Growth growth : waitFor) {
+                for (WaratekMachineLocation machine : growth.await()) {
+                    if (!available.contains(machine)) available.add(machine);
                 }
-            });
-            available.addAll(jvms);
+            }
+        }
+
+        List<Location> result = placeContainers(available, numToAdd);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Placement for {} nodes: {}", numToAdd, Iterables.toString(Iterables.transform(result, identity())));
+        }
+        return result;
+    }
+
+    /**
+     * Grow the JVM cluster; based on max number of JVCs.
+     * <p>
+     * The JVMs are started in parallel by a background task. Each JVM publishes its
+     * location as soon as its machine is provisioned, before the Waratek JVM is installed
+     * and launched, and {@link Growth#await()} returns once the new locations are available.
+     * Containers placed on them wait for the JVM to start.
+     */
+    protected Growth growJvmCluster(WaratekInfrastructure infrastructure, int remaining) {
+        int maxSize = getNewJvmCapacity(infrastructure);
+        final int delta = (remaining / maxSize) + (remaining % maxSize > 0 ? 1 : 0);
+        final DynamicCluster cluster = infrastructure.getVirtualMachineCluster();
+        Set<Entity> existing = ImmutableSet.copyOf(cluster.getMembers());
+
+        Task<Collection<Entity>> task = Entities.submit(infrastructure, Tasks.<Collection<Entity>>builder()
+                .name("Add " + delta + " JVMs")
+                .body(new Callable<Collection<Entity>>() {
+                    @Override
+                    public Collection<Entity> call() throws Exception {
+                        return cluster.resizeByDelta(delta);
+                    }
+                })
+                .build());
+        LOG.info("Adding {} JVMs for {} containers to {}", new Object[] { delta, remaining, infrastructure });
+
+        Growth growth = new Growth(infrastructure, task, cluster, existing, delta, maxSize);
+        growth.claim(remaining);
+        return growth;
+    }
+
+    /**
+     * JVMs being added to the cluster for placement requests.
+     * <p>
+     * Requests that need capacity while the JVMs are being added claim part of it,
+     * rather than adding more JVMs of their own.
+     */
+    protected class Growth {
+        private final WaratekInfrastructure infrastructure;
+        private final Task<Collection<Entity>> task;
+        private final DynamicCluster cluster;
+        private final Set<Entity> existing;
+        private final int delta;
+        private final int capacity;
+        private int claimed = 0; // guarded by growthMutex
+
+        private Growth(WaratekInfrastructure infrastructure, Task<Collection<Entity>> task, DynamicCluster cluster, Set<Entity> existing, int delta, int capacity) {
+            this.infrastructure = infrastructure;
+            this.task = task;
+            this.cluster = cluster;
+            this.existing = existing;
+            this.delta = delta;
+            this.capacity = capacity;
         }
 
-        // Logic from parent, with enhancements and types
+        /**
+         * Claim capacity on the JVMs that have not yet published their locations.
+         * <p>
+         * Must be called holding the growth mutex.
+         *
+         * @return the number of containers claimed
+         */
+        private int claim(int count) {
+            if (task.isDone()) return 0;
+            int unpublished = delta - newJvmLocations(cluster, existing).size();
+            int free = Math.max(0, unpublished * capacity - claimed);
+            int result = Math.min(count, free);
+            claimed += result;
+            return result;
+        }
+
+        /**
+         * Wait for the new JVMs to publish their locations.
+         *
+         * @throws NoMachinesAvailableException (propagated) if no new JVM location was published
+         */
+        public List<WaratekMachineLocation> await() {
+            Duration timeout = infrastructure.getConfig(JavaVirtualMachine.START_TIMEOUT);
+            try {
+                Repeater.create("Wait for new JVM locations")
+                        .every(Duration.millis(500))
+                        .until(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws Exception {
+                                return task.isDone() || newJvmLocations(cluster, existing).size() >= delta;
+                            }
+                        })
+                        .limitTimeTo(timeout)
+                        .run();
+            } finally {
+                synchronized (growthMutex) {
+                    growths.remove(this);
+                }
+            }
+
+            List<WaratekMachineLocation> added = newJvmLocations(cluster, existing);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Added {} JVMs: {}", added.size(), Iterables.toString(Iterables.transform(added, identity())));
+            }
+            if (added.isEmpty()) {
+                String error = task.isError() ? task.getStatusSummary() : "timeout after " + timeout;
+                throw Exceptions.propagate(new NoMachinesAvailableException(String.format("No JVMs added to %s: %s", infrastructure, error)));
+            }
+            return added;
+        }
+    }
+
+    private List<WaratekMachineLocation> newJvmLocations(DynamicCluster cluster, Set<Entity> existing) {
+        List<WaratekMachineLocation> result = Lists.newArrayList();
+        for (Entity member : cluster.getMembers()) {
+            if (existing.contains(member)) continue;
+            WaratekMachineLocation machine = ((JavaVirtualMachine) member).getDynamicLocation();
+            if (machine != null) result.add(machine);
+        }
+        return result;
+    }
+
+    /** The infrastructure configured, or else that of the first Waratek location given. */
+    protected WaratekInfrastructure getInfrastructure(Collection<? extends Location> locs) {
+        if (infrastructure != null) return infrastructure;
+        for (WaratekVirtualLocation location : Iterables.filter(locs, WaratekVirtualLocation.class)) {
+            return location.getWaratekInfrastructure();
+        }
+        return null;
+    }
+
+    /**
+     * Choose a JVM for each of the new containers.
+     * <p>
+     * Logic from parent, with enhancements and types. Containers are spread across the
+     * JVMs with the fewest containers. JVMs with no available capacity are not used, and
+     * no JVM is given more containers than it has capacity for.
+     *
+     * @throws NoMachinesAvailableException (propagated) if the JVMs do not have room for all the containers
+     */
+    protected List<Location> placeContainers(List<WaratekMachineLocation> available, int numToAdd) {
         List<Location> result = Lists.newArrayList();
         Map<WaratekMachineLocation, Integer> sizes = toAvailableLocationSizes(available);
+        Map<WaratekMachineLocation, Integer> capacities = Maps.newHashMap();
+        for (WaratekMachineLocation loc : sizes.keySet()) {
+            capacities.put(loc, getAvailableCapacity(loc));
+        }
         for (int i = 0; i < numToAdd; i++) {
             WaratekMachineLocation smallest = null;
             int minSize = 0;
@@ -108,29 +290,48 @@ public class WaratekNodePlacementStrategy extends BalancingNodePlacementStrategy
                     minSize = size;
                 }
             }
-            Preconditions.checkState(smallest != null, "smallest was null; locs=%s", sizes.keySet());
+            if (smallest == null) {
+                throw Exceptions.propagate(new NoMachinesAvailableException(String.format("No JVM has capacity for container %d of %d; locs=%s",
+                        i + 1, numToAdd, Iterables.toString(Iterables.transform(available, identity())))));
+            }
             result.add(smallest);
 
-            // Update population in locations, removing if maximum reached
-            int maxSize = smallest.getMaxSize();
-            int currentSize = sizes.get(smallest) + 1;
-            if (currentSize < maxSize) {
-                sizes.put(smallest, currentSize);
+            // Update population in locations, removing if capacity used up
+            int capacity = capacities.get(smallest) - 1;
+            if (capacity > 0) {
+                sizes.put(smallest, sizes.get(smallest) + 1);
+                capacities.put(smallest, capacity);
             } else {
                 sizes.remove(smallest);
             }
         }
+        return result;
+    }
 
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Placement for {} nodes: {}", numToAdd, Iterables.toString(Iterables.transform(result, identity())));
+    private int getAvailableCapacity(Iterable<WaratekMachineLocation> machines) {
+        int capacity = 0;
+        for (WaratekMachineLocation machine : machines) {
+            capacity += getAvailableCapacity(machine);
         }
-        return result;
+        return capacity;
+    }
+
+    /** The number of containers that can still be placed on the JVM. */
+    protected int getAvailableCapacity(WaratekMachineLocation machine) {
+        return machine.getAvailableJvcCount();
+    }
+
+    /** The number of containers that can be placed on a new JVM in the infrastructure. */
+    protected int getNewJvmCapacity(WaratekInfrastructure infrastructure) {
+        return infrastructure.getConfig(WaratekInfrastructure.JVC_CLUSTER_MAX_SIZE);
     }
 
     protected Map<WaratekMachineLocation, Integer> toAvailableLocationSizes(Iterable<WaratekMachineLocation> locs) {
         Map<WaratekMachineLocation, Integer> result = Maps.newLinkedHashMap();
         for (WaratekMachineLocation loc : locs) {
-            result.put(loc, loc.getCurrentJvcCount());
+            if (getAvailableCapacity(loc) > 0) {
+                result.put(loc, loc.getCurrentJvcCount());
+            }
         }
         return result;
     }
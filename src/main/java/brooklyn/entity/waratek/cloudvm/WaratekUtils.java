@@ -16,20 +16,29 @@
 package brooklyn.entity.waratek.cloudvm;
 
 import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
 import brooklyn.enricher.RollingTimeWindowMeanEnricher;
 import brooklyn.enricher.TimeWeightedDeltaEnricher;
 import brooklyn.entity.basic.EntityLocal;
 import brooklyn.entity.java.JavaAppUtils;
 import brooklyn.entity.java.UsesJavaMXBeans;
+import brooklyn.event.feed.function.FunctionFeed;
+import brooklyn.event.feed.function.FunctionPollConfig;
 import brooklyn.event.feed.http.HttpValueFunctions;
-import brooklyn.event.feed.jmx.JmxAttributePollConfig;
-import brooklyn.event.feed.jmx.JmxFeed;
-import brooklyn.event.feed.jmx.JmxHelper;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.time.Duration;
 
 import com.google.common.base.Function;
+import com.google.common.collect.Maps;
 
 public class WaratekUtils  {
 
@@ -45,96 +54,142 @@ public class WaratekUtils  {
         return String.format("com.waratek:type=%s,name=%s", jvcName, type);
     }
 
-    @SuppressWarnings({"unchecked","rawtypes"})
-    public static JmxFeed connectMXBeanSensors(JmxHelper helper, EntityLocal entity, Duration jmxPollPeriod) {
+    /**
+     * Polls the Waratek MXBeans for a JVC.
+     * <p>
+     * Each MXBean is read with a single {@code getAttributes} call per period and the
+     * results are shared by all the sensors derived from it. The {@code Info} MXBean is
+     * read for all JVCs on the JVM by {@link JvcMetricsCollector}.
+     */
+    public static FunctionFeed connectMXBeanSensors(JmxConnectionRegistry.Handle jmx, EntityLocal entity, Duration jmxPollPeriod) {
         String jvcName = entity.getAttribute(JavaVirtualContainer.JVC_NAME);
-        JmxFeed jmxFeed = JmxFeed.builder()
-                .helper(helper)
+        Callable<Map<String, Object>> memory = attributes(jmx, waratekMXBeanName(jvcName, "Memory"), "HeapMemoryUsage", "NonHeapMemoryUsage");
+        Callable<Map<String, Object>> threading = attributes(jmx, waratekMXBeanName(jvcName, "Threading"), "ThreadCount", "PeakThreadCount");
+        Callable<Map<String, Object>> runtime = attributes(jmx, waratekMXBeanName(jvcName, "Runtime"), "StartTime", "Uptime");
+        Callable<Map<String, Object>> load = attributes(jmx, waratekMXBeanName(jvcName, "OperatingSystem"), "SystemLoadAverage");
+        Callable<Map<String, Object>> processors = attributes(jmx, waratekMXBeanName(jvcName, "OperatingSystem"), "AvailableProcessors");
+
+        FunctionFeed feed = FunctionFeed.builder()
                 .entity(entity)
                 .period(jmxPollPeriod)
 
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.USED_HEAP_MEMORY)
-                        .objectName(waratekMXBeanName(jvcName, "Memory"))
-                        .attributeName("HeapMemoryUsage")
-                        .onSuccess((Function) HttpValueFunctions.chain(JavaAppUtils.compositeDataToMemoryUsage(), new Function<MemoryUsage, Long>() {
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.USED_HEAP_MEMORY)
+                        .callable(memory)
+                        .onSuccess(HttpValueFunctions.chain(memoryUsage("HeapMemoryUsage"), new Function<MemoryUsage, Long>() {
                             @Override public Long apply(MemoryUsage input) {
                                 return (input == null) ? null : input.getUsed();
                             }})))
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.INIT_HEAP_MEMORY)
-                        .objectName(waratekMXBeanName(jvcName, "Memory"))
-                        .attributeName("HeapMemoryUsage")
-                        .onSuccess((Function) HttpValueFunctions.chain(JavaAppUtils.compositeDataToMemoryUsage(), new Function<MemoryUsage, Long>() {
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.INIT_HEAP_MEMORY)
+                        .callable(memory)
+                        .onSuccess(HttpValueFunctions.chain(memoryUsage("HeapMemoryUsage"), new Function<MemoryUsage, Long>() {
                             @Override public Long apply(MemoryUsage input) {
                                 return (input == null) ? null : input.getInit();
                             }})))
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.COMMITTED_HEAP_MEMORY)
-                        .objectName(waratekMXBeanName(jvcName, "Memory"))
-                        .attributeName("HeapMemoryUsage")
-                        .onSuccess((Function) HttpValueFunctions.chain(JavaAppUtils.compositeDataToMemoryUsage(), new Function<MemoryUsage, Long>() {
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.COMMITTED_HEAP_MEMORY)
+                        .callable(memory)
+                        .onSuccess(HttpValueFunctions.chain(memoryUsage("HeapMemoryUsage"), new Function<MemoryUsage, Long>() {
                             @Override public Long apply(MemoryUsage input) {
                                 return (input == null) ? null : input.getCommitted();
                             }})))
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.MAX_HEAP_MEMORY)
-                        .objectName(waratekMXBeanName(jvcName, "Memory"))
-                        .attributeName("HeapMemoryUsage")
-                        .onSuccess((Function) HttpValueFunctions.chain(JavaAppUtils.compositeDataToMemoryUsage(), new Function<MemoryUsage, Long>() {
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.MAX_HEAP_MEMORY)
+                        .callable(memory)
+                        .onSuccess(HttpValueFunctions.chain(memoryUsage("HeapMemoryUsage"), new Function<MemoryUsage, Long>() {
                             @Override public Long apply(MemoryUsage input) {
                                 return (input == null) ? null : input.getMax();
                             }})))
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.NON_HEAP_MEMORY_USAGE)
-                        .objectName(waratekMXBeanName(jvcName, "Memory"))
-                        .attributeName("NonHeapMemoryUsage")
-                        .onSuccess((Function) HttpValueFunctions.chain(JavaAppUtils.compositeDataToMemoryUsage(), new Function<MemoryUsage, Long>() {
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.NON_HEAP_MEMORY_USAGE)
+                        .callable(memory)
+                        .onSuccess(HttpValueFunctions.chain(memoryUsage("NonHeapMemoryUsage"), new Function<MemoryUsage, Long>() {
                             @Override public Long apply(MemoryUsage input) {
                                 return (input == null) ? null : input.getUsed();
                             }})))
 
-                .pollAttribute(new JmxAttributePollConfig<Integer>(UsesJavaMXBeans.CURRENT_THREAD_COUNT)
-                        .objectName(waratekMXBeanName(jvcName, "Threading"))
-                        .attributeName("ThreadCount"))
-                .pollAttribute(new JmxAttributePollConfig<Integer>(UsesJavaMXBeans.PEAK_THREAD_COUNT)
-                        .objectName(waratekMXBeanName(jvcName, "Threading"))
-                        .attributeName("PeakThreadCount"))
+                .poll(new FunctionPollConfig<Map<String, Object>, Integer>(UsesJavaMXBeans.CURRENT_THREAD_COUNT)
+                        .callable(threading)
+                        .onSuccess(WaratekUtils.<Integer>attribute("ThreadCount")))
+                .poll(new FunctionPollConfig<Map<String, Object>, Integer>(UsesJavaMXBeans.PEAK_THREAD_COUNT)
+                        .callable(threading)
+                        .onSuccess(WaratekUtils.<Integer>attribute("PeakThreadCount")))
 
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.START_TIME)
-                        .objectName(waratekMXBeanName(jvcName, "Runtime"))
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.START_TIME)
+                        .callable(runtime)
                         .period(60, TimeUnit.SECONDS)
-                        .attributeName("StartTime"))
-                .pollAttribute(new JmxAttributePollConfig<Long>(UsesJavaMXBeans.UP_TIME)
-                        .objectName(waratekMXBeanName(jvcName, "Runtime"))
+                        .onSuccess(WaratekUtils.<Long>attribute("StartTime")))
+                .poll(new FunctionPollConfig<Map<String, Object>, Long>(UsesJavaMXBeans.UP_TIME)
+                        .callable(runtime)
                         .period(60, TimeUnit.SECONDS)
-                        .attributeName("Uptime"))
-
-                .pollAttribute(new JmxAttributePollConfig<Long>(WaratekAttributes.BYTES_SENT)
-                        .objectName(waratekMXBeanName(jvcName, "Info"))
-                        .attributeName("BytesSent"))
-                .pollAttribute(new JmxAttributePollConfig<Long>(WaratekAttributes.BYTES_RECEIVED)
-                        .objectName(waratekMXBeanName(jvcName, "Info"))
-                        .attributeName("BytesReceived"))
-                .pollAttribute(new JmxAttributePollConfig<Integer>(WaratekAttributes.FILE_DESCRIPTOR_COUNT)
-                        .objectName(waratekMXBeanName(jvcName, "Info"))
-                        .attributeName("FileDescriptorCount"))
-                .pollAttribute(new JmxAttributePollConfig<Double>(WaratekAttributes.CPU_USAGE)
-                        .objectName(waratekMXBeanName(jvcName, "Info"))
-                        .attributeName("CpuUsage"))
-                .pollAttribute(new JmxAttributePollConfig<String>(WaratekAttributes.STATUS)
-                        .objectName(waratekMXBeanName(jvcName, "Info"))
-                        .attributeName("Status"))
-
-                .pollAttribute(new JmxAttributePollConfig<Double>(UsesJavaMXBeans.SYSTEM_LOAD_AVERAGE)
-                        .objectName(waratekMXBeanName(jvcName, "OperatingSystem"))
-                        .attributeName("SystemLoadAverage")
-                        .onSuccess((Function) new Function<Double, Double>() {
+                        .onSuccess(WaratekUtils.<Long>attribute("Uptime")))
+
+                .poll(new FunctionPollConfig<Map<String, Object>, Double>(UsesJavaMXBeans.SYSTEM_LOAD_AVERAGE)
+                        .callable(load)
+                        .onSuccess(HttpValueFunctions.chain(WaratekUtils.<Double>attribute("SystemLoadAverage"), new Function<Double, Double>() {
                             @Override public Double apply(Double input) {
-                                return (input < 0d) ? null : input;
-                            }}))
-                .pollAttribute(new JmxAttributePollConfig<Integer>(UsesJavaMXBeans.AVAILABLE_PROCESSORS)
-                        .objectName(waratekMXBeanName(jvcName, "OperatingSystem"))
+                                return (input == null || input < 0d) ? null : input;
+                            }})))
+                .poll(new FunctionPollConfig<Map<String, Object>, Integer>(UsesJavaMXBeans.AVAILABLE_PROCESSORS)
+                        .callable(processors)
                         .period(60, TimeUnit.SECONDS)
-                        .attributeName("AvailableProcessors"))
+                        .onSuccess(WaratekUtils.<Integer>attribute("AvailableProcessors")))
 
                 .build();
-        return jmxFeed;
+        return feed;
+    }
+
+    /**
+     * A {@link Callable} reading several attributes of an MXBean in one round-trip.
+     * <p>
+     * Polls sharing the same callable instance are executed once per period by the {@link FunctionFeed}.
+     * A failed read is reported to the shared connection, which reconnects if it has dropped,
+     * so the next period reads from the new connection.
+     */
+    public static Callable<Map<String, Object>> attributes(final JmxConnectionRegistry.Handle jmx, String objectName, final String...attributes) {
+        final ObjectName name;
+        try {
+            name = ObjectName.getInstance(objectName);
+        } catch (MalformedObjectNameException e) {
+            throw Exceptions.propagate(e);
+        }
+        return new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws Exception {
+                AttributeList list;
+                try {
+                    list = jmx.getConnection().getAttributes(name, attributes);
+                } catch (Exception e) {
+                    jmx.failed(e);
+                    throw e;
+                }
+                Map<String, Object> values = Maps.newHashMapWithExpectedSize(list.size());
+                for (Attribute attribute : list.asList()) {
+                    values.put(attribute.getName(), attribute.getValue());
+                }
+                return values;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Function<Map<String, Object>, T> attribute(final String name) {
+        return new Function<Map<String, Object>, T>() {
+            @Override public T apply(Map<String, Object> input) {
+                return (input == null) ? null : (T) input.get(name);
+            }
+        };
+    }
+
+    private static Function<Map<String, Object>, MemoryUsage> memoryUsage(String name) {
+        return HttpValueFunctions.chain(WaratekUtils.<CompositeData>attribute(name), new Function<CompositeData, MemoryUsage>() {
+            @Override public MemoryUsage apply(CompositeData input) {
+                return (input == null) ? null : JavaAppUtils.compositeDataToMemoryUsage().apply(input);
+            }});
+    }
+
+    /**
+     * Converts a {@link WaratekAttributes#CPU_USAGE} or {@link WaratekAttributes#AVERAGE_CPU_USAGE}
+     * value, which Waratek reports as a percentage, to a fraction between 0 and 1.
+     */
+    public static Double cpuUsageFraction(Double percentage) {
+        return (percentage == null) ? null : percentage / 100d;
     }
 
     public static void connectEnrichers(EntityLocal entity) {
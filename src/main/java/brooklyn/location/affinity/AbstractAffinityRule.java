@@ -15,13 +15,17 @@
  */
 package brooklyn.location.affinity;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.internal.storage.Reference;
 import brooklyn.internal.storage.impl.BasicReference;
 import brooklyn.location.Location;
@@ -35,6 +39,7 @@ import brooklyn.util.text.Identifiers;
 
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 
 public abstract class AbstractAffinityRule implements AffinityRule {
 
@@ -46,9 +51,25 @@ public abstract class AbstractAffinityRule implements AffinityRule {
 
     protected final AtomicBoolean configured = new AtomicBoolean(false);
 
+    /* Verdicts by location id, valid for the location generation and config version they were evaluated at. */
+    private final AtomicLong configVersion = new AtomicLong(0L);
+    private final ConcurrentMap<String, Verdict> verdicts = Maps.newConcurrentMap();
+
+    public static final ConfigKey<Double> WEIGHT = ConfigKeys.newDoubleConfigKey(
+            "weight", "The weight of the rule score when combined with other rules", 1d);
+
+    public static final ConfigKey<Boolean> REQUIRED = ConfigKeys.newBooleanConfigKey(
+            "required", "Reject locations that do not satisfy the rule, rather than scoring them lower", Boolean.TRUE);
+
     @SetFromFlag("id")
     protected String id = Identifiers.makeRandomId(8);
 
+    @SetFromFlag("weight")
+    protected double weight = WEIGHT.getDefaultValue();
+
+    @SetFromFlag("required")
+    protected boolean required = REQUIRED.getDefaultValue();
+
     public AbstractAffinityRule(Map<String, ?> properties) {
         inConstruction = true;
 
@@ -73,7 +94,10 @@ public abstract class AbstractAffinityRule implements AffinityRule {
 
     @Override
     public <T> T setConfig(ConfigKey<T> key, T value) {
-        return configBag.put(key, value);
+        T old = configBag.put(key, value);
+        FlagUtils.setFieldsFromFlags(Collections.singletonMap(key.getName(), value), this);
+        configVersion.incrementAndGet();
+        return old;
     }
 
     // TODO ensure no callers rely on 'remove' semantics, and don't remove;
@@ -97,6 +121,7 @@ public abstract class AbstractAffinityRule implements AffinityRule {
 
         FlagUtils.setFieldsFromFlagsWithBag(this, properties, configBag, firstTime);
         FlagUtils.setAllConfigKeys(this, configBag, false);
+        configVersion.incrementAndGet();
 
         if (properties.containsKey("name")) {
             name.set((String) removeIfPossible(properties, "name"));
@@ -124,15 +149,82 @@ public abstract class AbstractAffinityRule implements AffinityRule {
         return managementContext != null;
     }
 
+    /** The index of entities at each location, for rules that depend on them. */
+    protected LocationEntityIndex getLocationEntityIndex() {
+        return LocationEntityIndex.forManagementContext(managementContext);
+    }
+
+    /**
+     * Whether the location satisfies the rule, using the cached verdict if nothing has
+     * changed since it was evaluated.
+     *
+     * @see #evaluate(Location)
+     */
     @Override
-    public abstract int compare(Location o1, Location o2);
+    public boolean apply(@Nullable Location input) {
+        if (input == null || !isManaged() || !isCacheable()) {
+            return evaluate(input);
+        }
+        long generation = getLocationEntityIndex().getGeneration(input);
+        long version = configVersion.get();
+        Verdict cached = verdicts.get(input.getId());
+        if (cached != null && cached.generation == generation && cached.version == version) {
+            return cached.result;
+        }
+        boolean result = evaluate(input);
+        verdicts.put(input.getId(), new Verdict(generation, version, result));
+        return result;
+    }
+
+    /** Evaluate the rule for the location, ignoring any cached verdict. */
+    protected abstract boolean evaluate(Location input);
+
+    /**
+     * Whether verdicts can be cached until an entity is added to or removed from the
+     * location, or the rule is reconfigured.
+     */
+    protected boolean isCacheable() {
+        return true;
+    }
+
+    /** Scores 1 if the location satisfies the rule, otherwise 0. */
+    @Override
+    public double score(Location location) {
+        return apply(location) ? 1d : 0d;
+    }
 
     @Override
-    public abstract boolean apply(@Nullable Location input);
+    public double getWeight() {
+        return weight;
+    }
+
+    @Override
+    public boolean isRequired() {
+        return required;
+    }
+
+    /** Orders by descending {@link #score(Location) score}, then by id so that distinct locations are never equal. */
+    @Override
+    public int compare(Location o1, Location o2) {
+        int result = Double.compare(score(o2), score(o1));
+        return (result != 0) ? result : o1.getId().compareTo(o2.getId());
+    }
 
     @Override
     public SortedSet<Location> checkLocations(Iterable<Location> locs) {
-        return ImmutableSortedSet.orderedBy(this).addAll(Iterables.filter(locs, this)).build();
+        return ImmutableSortedSet.orderedBy(this).addAll(required ? Iterables.filter(locs, this) : locs).build();
+    }
+
+    private static class Verdict {
+        private final long generation;
+        private final long version;
+        private final boolean result;
+
+        public Verdict(long generation, long version, boolean result) {
+            this.generation = generation;
+            this.version = version;
+            this.result = result;
+        }
     }
 
 }
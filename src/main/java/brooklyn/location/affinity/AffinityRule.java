@@ -27,6 +27,20 @@ import com.google.common.base.Predicate;
 @Beta
 public interface AffinityRule extends Comparator<Location>, Predicate<Location>, Configurable {
 
+    /**
+     * The locations allowed by the rule, best first.
+     * <p>
+     * Rules that are not {@link #isRequired() required} allow every location.
+     */
     SortedSet<Location> checkLocations(Iterable<Location> locs);
 
+    /** How well the location satisfies the rule, from 0 to 1. */
+    double score(Location location);
+
+    /** The weight of the {@link #score(Location) score} when combined with other rules. */
+    double getWeight();
+
+    /** Whether locations that do not satisfy the rule must be rejected, rather than just scored lower. */
+    boolean isRequired();
+
 }
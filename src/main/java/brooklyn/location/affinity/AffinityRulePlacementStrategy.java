@@ -16,32 +16,139 @@
 package brooklyn.location.affinity;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.entity.Entity;
-import brooklyn.entity.group.DynamicCluster.NodePlacementStrategy;
+import brooklyn.entity.group.zoneaware.BalancingNodePlacementStrategy;
 import brooklyn.location.Location;
+import brooklyn.management.ManagementContext;
+import brooklyn.management.internal.ManagementContextInternal;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 
 /**
  * Placement strategy that checks {@link AffinityRule}s on the {@link Location}s.
+ * <p>
+ * A location is a candidate if it satisfies all the {@link AffinityRule#isRequired() required}
+ * rules given to the strategy, and the {@link LocationAffinityConfig#AFFINITY_RULES rules}
+ * configured on the location itself when {@link LocationAffinityConfig#ENABLE_AFFINITY enabled}.
+ * Empty locations are allowed regardless of the rules if
+ * {@link LocationAffinityConfig#DEFAULT_EMPTY_LOCATION_ALLOW} is set. The other rules
+ * only score the candidates, and the new entities are balanced across the candidates with
+ * the best total {@link AffinityRule#getWeight() weighted} score, so a preference that
+ * cannot be met never stops the placement.
+ *
+ * @see BalancingNodePlacementStrategy
  */
-public class AffinityRulePlacementStrategy implements NodePlacementStrategy {
+public class AffinityRulePlacementStrategy extends BalancingNodePlacementStrategy {
 
     private static final Logger LOG = LoggerFactory.getLogger(AffinityRulePlacementStrategy.class);
 
+    private static final double SCORE_TOLERANCE = 1e-9d;
+
+    private final ManagementContext managementContext;
+    private final List<AffinityRule> rules;
+    private final boolean allowEmpty;
+
+    public AffinityRulePlacementStrategy(ManagementContext managementContext, List<? extends AffinityRule> rules) {
+        this(managementContext, rules, LocationAffinityConfig.DEFAULT_EMPTY_LOCATION_ALLOW.getDefaultValue());
+    }
+
+    public AffinityRulePlacementStrategy(ManagementContext managementContext, List<? extends AffinityRule> rules, boolean allowEmpty) {
+        this.managementContext = Preconditions.checkNotNull(managementContext, "managementContext");
+        this.rules = ImmutableList.copyOf(rules);
+        this.allowEmpty = allowEmpty;
+        for (AffinityRule rule : this.rules) {
+            manage(rule);
+        }
+    }
+
     @Override
     public List<Location> locationsForAdditions(Multimap<Location, Entity> currentMembers, Collection<? extends Location> locs, int numToAdd) {
-        return null;
+        Map<Location, Double> scores = Maps.newLinkedHashMap();
+        for (Location location : locs) {
+            if (isAllowed(location)) scores.put(location, score(location));
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Affinity rules allow {} of {} locations, with scores: {}", new Object[] { scores.size(), locs.size(), scores });
+        }
+        if (scores.isEmpty() && numToAdd > 0) {
+            throw new IllegalStateException(String.format("No locations satisfy affinity rules for %d entities, from %s", numToAdd, Iterables.toString(locs)));
+        }
+
+        // Balance across the locations with the best total score
+        List<Location> best = Lists.newArrayList();
+        if (!scores.isEmpty()) {
+            double max = Collections.max(scores.values());
+            for (Map.Entry<Location, Double> entry : scores.entrySet()) {
+                if (entry.getValue() >= max - SCORE_TOLERANCE) best.add(entry.getKey());
+            }
+        }
+
+        if (currentMembers == null) currentMembers = ArrayListMultimap.create();
+        return super.locationsForAdditions(currentMembers, best, numToAdd);
+    }
+
+    /**
+     * Whether the location satisfies the {@link AffinityRule#isRequired() required} strategy
+     * rules and its own required rules.
+     */
+    protected boolean isAllowed(Location location) {
+        if (isEmptyAllowed(location) && LocationEntityIndex.forManagementContext(managementContext).isEmpty(location)) {
+            return true;
+        }
+        for (AffinityRule rule : getRules(location)) {
+            if (rule.isRequired() && !rule.apply(location)) return false;
+        }
+        return true;
+    }
+
+    /** The weighted total score of the location for the rules that are not required. */
+    protected double score(Location location) {
+        double total = 0d;
+        for (AffinityRule rule : getRules(location)) {
+            if (!rule.isRequired()) total += rule.getWeight() * rule.score(location);
+        }
+        return total;
+    }
+
+    /** The strategy rules followed by the rules configured on the location. */
+    private List<AffinityRule> getRules(Location location) {
+        if (!Boolean.TRUE.equals(location.getConfig(LocationAffinityConfig.ENABLE_AFFINITY))) {
+            return rules;
+        }
+        List<AffinityRule> result = Lists.newArrayList(rules);
+        for (AffinityRule rule : location.getConfig(LocationAffinityConfig.AFFINITY_RULES)) {
+            manage(rule);
+            result.add(rule);
+        }
+        return result;
+    }
+
+    private boolean isEmptyAllowed(Location location) {
+        return allowEmpty || Boolean.TRUE.equals(location.getConfig(LocationAffinityConfig.DEFAULT_EMPTY_LOCATION_ALLOW));
+    }
+
+    private void manage(AffinityRule rule) {
+        if (rule instanceof AbstractAffinityRule && !((AbstractAffinityRule) rule).isManaged()) {
+            ((AbstractAffinityRule) rule).setManagementContext((ManagementContextInternal) managementContext);
+        }
     }
 
     @Override
-    public List<Entity> entitiesToRemove(Multimap<Location, Entity> currentMembers, int numToRemove) {
-        return null;
+    public String toString() {
+        return "Affinity rule NodePlacementStrategy " + rules;
     }
 
-}
\ No newline at end of file
+}
@@ -17,12 +17,8 @@ package brooklyn.location.affinity;
 
 import java.util.Map;
 
-import javax.annotation.Nullable;
-
 import brooklyn.config.ConfigKey;
-import brooklyn.entity.Entity;
 import brooklyn.entity.basic.ConfigKeys;
-import brooklyn.entity.basic.EntityPredicates;
 import brooklyn.location.Location;
 import brooklyn.util.flags.SetFromFlag;
 
@@ -39,14 +35,8 @@ public class EntityIdAffinityRule extends AbstractAffinityRule {
     }
 
     @Override
-    public int compare(Location o1, Location o2) {
-        return 0;
-    }
-
-    @Override
-    public boolean apply(@Nullable Location input) {
-        Entity entity = getManagementContext().getEntityManager().getEntity(entityId);
-        return EntityPredicates.withLocation(input).apply(entity);
+    protected boolean evaluate(Location input) {
+        return getLocationEntityIndex().hasEntity(input, entityId);
     }
 
 }
@@ -15,19 +15,14 @@
  */
 package brooklyn.location.affinity;
 
-import java.util.Collection;
 import java.util.Map;
 
-import javax.annotation.Nullable;
-
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.ConfigKeys;
-import brooklyn.entity.basic.EntityPredicates;
 import brooklyn.location.Location;
 import brooklyn.util.flags.SetFromFlag;
 
-import com.google.common.collect.Iterables;
 import com.google.common.reflect.TypeToken;
 
 public class EntityTypeAffinityRule extends AbstractAffinityRule {
@@ -43,13 +38,16 @@ public class EntityTypeAffinityRule extends AbstractAffinityRule {
     }
 
     @Override
-    public int compare(Location o1, Location o2) {
-        return 0;
+    protected boolean evaluate(Location input) {
+        return getLocationEntityIndex().hasEntityOfType(input, entityType);
     }
 
+    /**
+     * Scores the fraction of the entities at the location that are of the entity type, so a
+     * location mostly running that type is preferred.
+     */
     @Override
-    public boolean apply(@Nullable Location input) {
-        Collection<Entity> all = getManagementContext().getEntityManager().getEntities();
-        return Iterables.any(Iterables.filter(all, entityType), EntityPredicates.withLocation(input));
+    public double score(Location location) {
+        return getLocationEntityIndex().getFractionOfType(location, entityType);
     }
 }
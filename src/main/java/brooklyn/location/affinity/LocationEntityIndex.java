@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.affinity;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.AbstractEntity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.location.Location;
+import brooklyn.management.ManagementContext;
+import brooklyn.management.internal.CollectionChangeListener;
+import brooklyn.management.internal.ManagementContextInternal;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Index of the entities at each location, for evaluating {@link AffinityRule}s.
+ * <p>
+ * An entity is indexed against each of its locations and all of their parents, so an
+ * application in a JVC is found at the JVM and machine locations too. The index is
+ * kept up to date from the {@link AbstractEntity#LOCATION_ADDED} and
+ * {@link AbstractEntity#LOCATION_REMOVED} events of every entity, and entities are
+ * removed from it when they are no longer managed.
+ * <p>
+ * Each location has a {@link #getGeneration(Location) generation} that changes whenever
+ * an entity is added to or removed from it, so rules can cache their verdicts.
+ */
+@Beta
+public class LocationEntityIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationEntityIndex.class);
+
+    /* The index does not refer to its management context, so entries are dropped once the context is collected. */
+    private static final Map<ManagementContext, LocationEntityIndex> INDEXES = new WeakHashMap<ManagementContext, LocationEntityIndex>();
+
+    /** The index for a management context, created on first use. */
+    public static LocationEntityIndex forManagementContext(ManagementContext managementContext) {
+        synchronized (INDEXES) {
+            LocationEntityIndex index = INDEXES.get(managementContext);
+            if (index == null) {
+                index = new LocationEntityIndex();
+                INDEXES.put(managementContext, index);
+                index.start(managementContext);
+            }
+            return index;
+        }
+    }
+
+    /* Guarded by this. */
+
+    private final SetMultimap<String, Entity> entitiesByLocation = HashMultimap.create();
+    private final SetMultimap<Entity, String> locationsByEntity = HashMultimap.create();
+    private final Map<String, Long> generations = Maps.newHashMap();
+    private long nextGeneration = 1L;
+
+    private LocationEntityIndex() { }
+
+    private void start(ManagementContext managementContext) {
+        SensorEventListener<Location> listener = new SensorEventListener<Location>() {
+            @Override
+            public void onEvent(SensorEvent<Location> event) {
+                update(event.getSource());
+            }
+        };
+        managementContext.getSubscriptionManager().subscribe(null, AbstractEntity.LOCATION_ADDED, listener);
+        managementContext.getSubscriptionManager().subscribe(null, AbstractEntity.LOCATION_REMOVED, listener);
+        ((ManagementContextInternal) managementContext).addEntitySetListener(new CollectionChangeListener<Entity>() {
+            @Override
+            public void onItemAdded(Entity item) {
+                update(item);
+            }
+            @Override
+            public void onItemRemoved(Entity item) {
+                remove(item);
+            }
+        });
+
+        // Entities that already have locations
+        for (Entity entity : managementContext.getEntityManager().getEntities()) {
+            update(entity);
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Started location index for {} with {} locations", managementContext, entitiesByLocation.keySet().size());
+    }
+
+    /** Re-index the entity against its current locations, or remove it if it is no longer managed. */
+    public synchronized void update(Entity entity) {
+        if (!Entities.isManaged(entity)) {
+            remove(entity);
+            return;
+        }
+        Set<String> previous = unindex(entity);
+        Set<String> current = Sets.newHashSet();
+        for (Location location : entity.getLocations()) {
+            for (Location ancestor = location; ancestor != null; ancestor = ancestor.getParent()) {
+                current.add(ancestor.getId());
+                locationsByEntity.put(entity, ancestor.getId());
+                entitiesByLocation.put(ancestor.getId(), entity);
+            }
+        }
+        for (String location : Sets.symmetricDifference(previous, current)) {
+            generations.put(location, nextGeneration++);
+        }
+    }
+
+    /** Remove the entity from all its locations. */
+    public synchronized void remove(Entity entity) {
+        for (String location : unindex(entity)) {
+            generations.put(location, nextGeneration++);
+        }
+    }
+
+    private Set<String> unindex(Entity entity) {
+        Set<String> previous = locationsByEntity.removeAll(entity);
+        for (String location : previous) {
+            entitiesByLocation.remove(location, entity);
+        }
+        return previous;
+    }
+
+    /** A value that changes whenever an entity is added to or removed from the location. */
+    public synchronized long getGeneration(Location location) {
+        Long generation = generations.get(location.getId());
+        return (generation == null) ? 0L : generation;
+    }
+
+    /** The managed entities at the location or any of its children. */
+    public synchronized Collection<Entity> getEntities(Location location) {
+        return ImmutableList.copyOf(Iterables.filter(entitiesByLocation.get(location.getId()), new Predicate<Entity>() {
+            @Override
+            public boolean apply(Entity input) {
+                return Entities.isManaged(input);
+            }
+        }));
+    }
+
+    public boolean isEmpty(Location location) {
+        return getEntities(location).isEmpty();
+    }
+
+    public boolean hasEntity(Location location, String entityId) {
+        for (Entity entity : getEntities(location)) {
+            if (entity.getId().equals(entityId)) return true;
+        }
+        return false;
+    }
+
+    public boolean hasEntityOfType(Location location, Class<? extends Entity> type) {
+        return Iterables.any(getEntities(location), Predicates.instanceOf(type));
+    }
+
+    /** The fraction of the entities at the location that are of the given type, or zero if there are none. */
+    public double getFractionOfType(Location location, Class<? extends Entity> type) {
+        Collection<Entity> entities = getEntities(location);
+        if (entities.isEmpty()) return 0d;
+        return (double) Iterables.size(Iterables.filter(entities, Predicates.instanceOf(type))) / entities.size();
+    }
+
+}
@@ -17,8 +17,6 @@ package brooklyn.location.affinity;
 
 import java.util.Map;
 
-import javax.annotation.Nullable;
-
 import brooklyn.location.Location;
 
 public class NullAffinityRule extends AbstractAffinityRule {
@@ -28,12 +26,7 @@ public class NullAffinityRule extends AbstractAffinityRule {
     }
 
     @Override
-    public int compare(Location o1, Location o2) {
-        return 0;
-    }
-
-    @Override
-    public boolean apply(@Nullable Location input) {
+    protected boolean evaluate(Location input) {
         return true;
     }
 
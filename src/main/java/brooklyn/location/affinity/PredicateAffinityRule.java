@@ -17,8 +17,6 @@ package brooklyn.location.affinity;
 
 import java.util.Map;
 
-import javax.annotation.Nullable;
-
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.location.Location;
@@ -41,13 +39,14 @@ public class PredicateAffinityRule extends AbstractAffinityRule {
     }
 
     @Override
-    public int compare(Location o1, Location o2) {
-        return 0;
+    protected boolean evaluate(Location input) {
+        return predicate.apply(input);
     }
 
+    /** The predicate may depend on anything, so it is evaluated every time. */
     @Override
-    public boolean apply(@Nullable Location input) {
-        return predicate.apply(input);
+    protected boolean isCacheable() {
+        return false;
     }
 
 }
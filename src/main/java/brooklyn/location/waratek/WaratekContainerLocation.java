@@ -17,43 +17,67 @@ package brooklyn.location.waratek;
 
 import groovy.lang.Closure;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.AbstractSoftwareProcessSshDriver;
+import brooklyn.entity.basic.EntityInternal;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualContainer;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
+import brooklyn.entity.waratek.cloudvm.JvcMetricsCollector;
 import brooklyn.entity.waratek.cloudvm.WaratekAttributes;
 import brooklyn.entity.waratek.cloudvm.WaratekInfrastructure;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
 import brooklyn.location.PortRange;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.dynamic.DynamicLocation;
+import brooklyn.management.SubscriptionHandle;
+import brooklyn.management.SubscriptionManager;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.flags.SetFromFlag;
 import brooklyn.util.internal.ssh.SshTool;
-import brooklyn.util.net.Protocol;
 import brooklyn.util.os.Os;
+import brooklyn.util.ssh.BashCommands;
 import brooklyn.util.ssh.IptablesCommands;
-import brooklyn.util.ssh.IptablesCommands.Chain;
-import brooklyn.util.ssh.IptablesCommands.Policy;
 import brooklyn.util.text.Strings;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 
 public class WaratekContainerLocation extends SshMachineLocation implements DynamicLocation<JavaVirtualContainer, WaratekContainerLocation> {
 
     private static final Logger LOG = LoggerFactory.getLogger(WaratekContainerLocation.class);
 
+    /* The JVC mutexes held by the current thread, so nested commands for the same JVC do not wait on themselves. */
+    private static final ThreadLocal<Set<String>> EXECUTING = new ThreadLocal<Set<String>>() {
+        @Override
+        protected Set<String> initialValue() {
+            return Sets.newHashSet();
+        }
+    };
+
     @SetFromFlag("machine")
     private SshMachineLocation machine;
 
@@ -63,6 +87,10 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
     @SetFromFlag("entity")
     private Entity entity;
 
+    private volatile CachedInjection injection;
+    private final AtomicLong injectionVersion = new AtomicLong(0L);
+    private final List<SubscriptionHandle> injectionSubscriptions = Lists.newCopyOnWriteArrayList();
+
     public WaratekContainerLocation() {
         this(Maps.newLinkedHashMap());
     }
@@ -88,6 +116,7 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
 
     public void setEntity(Entity entity) {
         jvc.setRunningEntity(entity);
+        invalidateInjection();
     }
 
     public Entity getEntity() {
@@ -98,15 +127,78 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
         return jvc.getJavaVirtualMachine();
     }
 
-    public List<String> injectWaratekCommands(List<String> commands) {
-        List<String> updated  = Lists.newArrayList();
-        if (getOwner().getJavaVirtualMachine().getConfig(JavaVirtualMachine.DEBUG)) {
-            updated.add("set -x");
+    /*
+     * The injected commands, environment and props only depend on the JVC, its JVM and the
+     * entity running in it. They are built once and reused until one of those inputs changes,
+     * which increments the version; an injection being built when that happens is stored
+     * with the old version, so it is rebuilt on the next use rather than kept.
+     */
+
+    @Override
+    public void onManagementStarted() {
+        super.onManagementStarted();
+        SensorEventListener<Object> invalidate = new SensorEventListener<Object>() {
+            @Override
+            public void onEvent(SensorEvent<Object> event) {
+                invalidateInjection();
+            }
+        };
+        SubscriptionManager subscriptions = getManagementContext().getSubscriptionManager();
+        injectionSubscriptions.add(subscriptions.subscribe(jvc, JavaVirtualContainer.ENTITY, invalidate));
+        injectionSubscriptions.add(subscriptions.subscribe(jvc, JavaVirtualContainer.JVC_NAME, invalidate));
+        JavaVirtualMachine jvm = getJavaVirtualMachine();
+        injectionSubscriptions.add(subscriptions.subscribe(jvm, JavaVirtualMachine.JVM_NAME, invalidate));
+        injectionSubscriptions.add(subscriptions.subscribe(jvm, JavaVirtualMachine.JAVA_HOME, invalidate));
+        injectionSubscriptions.add(subscriptions.subscribe(jvm, JavaVirtualMachine.ROOT_DIRECTORY, invalidate));
+        invalidateInjection();
+    }
+
+    @Override
+    public void onManagementStopped() {
+        unsubscribeInjection();
+        super.onManagementStopped();
+    }
+
+    private void unsubscribeInjection() {
+        for (SubscriptionHandle handle : injectionSubscriptions) {
+            if (injectionSubscriptions.remove(handle)) getManagementContext().getSubscriptionManager().unsubscribe(handle);
         }
-        String javaHome = getJavaVirtualMachine().getJavaHome();
-        String pathExport = String.format("export PATH=%s:$PATH", Os.mergePaths(javaHome, "bin"));
-        updated.add(pathExport);
-        updated.addAll(commands);
+        invalidateInjection();
+    }
+
+    private void invalidateInjection() {
+        injectionVersion.incrementAndGet();
+    }
+
+    private Injection getInjection() {
+        long version = injectionVersion.get();
+        CachedInjection cached = injection;
+        if (cached != null && cached.version == version) return cached.injection;
+        Injection updated = Injection.update((cached == null) ? null : cached.injection, new InjectionInputs(jvc, getJavaVirtualMachine()));
+        injection = new CachedInjection(version, updated);
+        return updated;
+    }
+
+    /** An {@link Injection} and the version of the inputs it was built for. */
+    private static class CachedInjection {
+        private final long version;
+        private final Injection injection;
+
+        private CachedInjection(long version, Injection injection) {
+            this.version = version;
+            this.injection = injection;
+        }
+    }
+
+    public List<String> injectWaratekCommands(List<String> commands) {
+        return injectWaratekCommands(getInjection(), commands);
+    }
+
+    private List<String> injectWaratekCommands(Injection current, List<String> commands) {
+        List<String> updated = ImmutableList.<String>builder()
+                .addAll(current.commands)
+                .addAll(commands)
+                .build();
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Updated commands: {}", Joiner.on(" ; ").join(updated));
@@ -115,35 +207,25 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
     }
 
     public Map<String,?> injectWaratekEnvironment(Map<String,?> env) {
-        List<String> opts = Lists.newArrayList();
-        opts.add("--prefix=" + jvc.getJavaVirtualMachine().getRootDirectory());
-        opts.add("--async");
-        opts.add("--jvm=" + jvc.getJavaVirtualMachine().getJvmName());
-        opts.add("--jvc=" + jvc.getJvcName());
-        if (getOwner().getJavaVirtualMachine().getConfig(JavaVirtualMachine.DEBUG)) {
-            opts.add("-verbose");
-        }
-        String waratekOpts = Joiner.on(" ").join(opts);
-
-        String javaHome = getJavaVirtualMachine().getJavaHome();
+        return injectWaratekEnvironment(getInjection(), env);
+    }
 
+    private Map<String,?> injectWaratekEnvironment(Injection current, Map<String,?> env) {
         MutableMap<String, Object> updated = MutableMap.<String, Object>builder()
                 .putAll(env)
-                .put(JavaVirtualMachine.JAVA_HOME_VAR, javaHome)
+                .putAll(current.environment)
                 .build();
 
-        // TODO make this configurable? we would need to know the entity being deployed here...
-        // List of possible 'JAVA_OPTS' environment variables
+        // Add to the 'JAVA_OPTS' environment variables, or create it if none exist
         boolean modified = false;
-        for (String var : ImmutableList.of("ACTIVEMQ_OPTS", "QPID_OPTS", "JAVA_OPTIONS", "JVM_OPTS", "KAFKA_JMX_OPTS", JavaVirtualMachine.JAVA_OPTS_VAR)) {
+        for (String var : current.javaOptsVariables) {
             if (env.containsKey(var)) {
-                updated.put(var, waratekOpts + " " + env.get(var).toString());
+                updated.put(var, current.waratekOpts + " " + env.get(var).toString());
                 modified = true;
             }
         }
-        // Create 'JAVA_OPTS' if it (or equivalent) doesn't exist
         if (!modified) {
-            updated.put(JavaVirtualMachine.JAVA_OPTS_VAR, waratekOpts);
+            updated.put(JavaVirtualMachine.JAVA_OPTS_VAR, current.waratekOpts);
         }
 
         if (LOG.isTraceEnabled()) {
@@ -153,11 +235,14 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
     }
 
     public Map<String,?> injectWaratekProps(Map<String,?> props) {
-        MutableMap.Builder<String, Object> builder = MutableMap.<String, Object>builder().putAll(props);
-        if (getJavaVirtualMachine().getConfig(JavaVirtualMachine.USE_WARATEK_USER)) {
-            builder.put(SshTool.PROP_USER.getName(), getJavaVirtualMachine().getConfig(JavaVirtualMachine.WARATEK_USER));
-        }
-        Map<String, ?> updated = builder.build();
+        return injectWaratekProps(getInjection(), props);
+    }
+
+    private Map<String,?> injectWaratekProps(Injection current, Map<String,?> props) {
+        Map<String, ?> updated = MutableMap.<String, Object>builder()
+                .putAll(props)
+                .putAll(current.props)
+                .build();
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Updated props: {}", Joiner.on(",").withKeyValueSeparator("=").join(updated));
@@ -165,34 +250,353 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
         return updated;
     }
 
+    /** The values read from the JVC, JVM and running entity that an {@link Injection} is built from. */
+    static class InjectionInputs {
+        private final String entityId;
+        private final String jvcName;
+        private final String jvmName;
+        private final String javaHome;
+        private final String rootDirectory;
+        private final boolean debug;
+        private final String user;
+        private final List<String> javaOptsVariables;
+
+        public InjectionInputs(JavaVirtualContainer jvc, JavaVirtualMachine jvm) {
+            this(jvc.getRunningEntity(), jvc.getJvcName(), jvm);
+        }
+
+        private InjectionInputs(Entity running, String jvcName, JavaVirtualMachine jvm) {
+            this((running != null) ? running.getId() : null, jvcName, jvm.getJvmName(), jvm.getJavaHome(), jvm.getRootDirectory(),
+                    Boolean.TRUE.equals(jvm.getConfig(JavaVirtualMachine.DEBUG)),
+                    Boolean.TRUE.equals(jvm.getConfig(JavaVirtualMachine.USE_WARATEK_USER)) ? jvm.getConfig(JavaVirtualMachine.WARATEK_USER) : null,
+                    getJavaOptsVariables(running, jvm));
+        }
+
+        InjectionInputs(String entityId, String jvcName, String jvmName, String javaHome, String rootDirectory,
+                boolean debug, String user, List<String> javaOptsVariables) {
+            this.entityId = entityId;
+            this.jvcName = jvcName;
+            this.jvmName = jvmName;
+            this.javaHome = javaHome;
+            this.rootDirectory = rootDirectory;
+            this.debug = debug;
+            this.user = user;
+            this.javaOptsVariables = ImmutableList.copyOf(javaOptsVariables);
+        }
+
+        /** The deployed entity can say which variables it uses for JVM options, otherwise the JVM's are used. */
+        private static List<String> getJavaOptsVariables(Entity running, JavaVirtualMachine jvm) {
+            if (running != null && ((EntityInternal) running).getConfigRaw(JavaVirtualMachine.JAVA_OPTS_VARIABLES, true).isPresent()) {
+                List<String> variables = running.getConfig(JavaVirtualMachine.JAVA_OPTS_VARIABLES);
+                if (variables != null) return variables;
+            }
+            return jvm.getConfig(JavaVirtualMachine.JAVA_OPTS_VARIABLES);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof InjectionInputs)) return false;
+            InjectionInputs that = (InjectionInputs) obj;
+            return Objects.equal(entityId, that.entityId) && Objects.equal(jvcName, that.jvcName)
+                    && Objects.equal(jvmName, that.jvmName) && Objects.equal(javaHome, that.javaHome)
+                    && Objects.equal(rootDirectory, that.rootDirectory) && debug == that.debug
+                    && Objects.equal(user, that.user) && javaOptsVariables.equals(that.javaOptsVariables);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(entityId, jvcName, jvmName, javaHome, rootDirectory, debug, user, javaOptsVariables);
+        }
+    }
+
+    /** The prebuilt values for {@link #injectWaratekCommands(List)} and friends. */
+    static class Injection {
+        final InjectionInputs inputs;
+        final List<String> commands;
+        final Map<String, Object> environment;
+        final Map<String, Object> props;
+        final String waratekOpts;
+        final List<String> javaOptsVariables;
+
+        /** The current injection if it was built from the same inputs, otherwise a new one. */
+        static Injection update(Injection current, InjectionInputs inputs) {
+            return (current != null && current.inputs.equals(inputs)) ? current : new Injection(inputs);
+        }
+
+        Injection(InjectionInputs inputs) {
+            this.inputs = inputs;
+
+            ImmutableList.Builder<String> commandsBuilder = ImmutableList.builder();
+            if (inputs.debug) {
+                commandsBuilder.add("set -x");
+            }
+            commandsBuilder.add(String.format("export PATH=%s:$PATH", Os.mergePaths(inputs.javaHome, "bin")));
+            commands = commandsBuilder.build();
+
+            List<String> opts = Lists.newArrayList();
+            opts.add("--prefix=" + inputs.rootDirectory);
+            opts.add("--async");
+            opts.add("--jvm=" + inputs.jvmName);
+            opts.add("--jvc=" + inputs.jvcName);
+            if (inputs.debug) {
+                opts.add("-verbose");
+            }
+            waratekOpts = Joiner.on(" ").join(opts);
+
+            environment = MutableMap.<String, Object>of(JavaVirtualMachine.JAVA_HOME_VAR, inputs.javaHome);
+
+            MutableMap<String, Object> propsBuilder = MutableMap.of();
+            if (inputs.user != null) {
+                propsBuilder.put(SshTool.PROP_USER.getName(), inputs.user);
+            }
+            props = propsBuilder;
+
+            javaOptsVariables = inputs.javaOptsVariables;
+        }
+    }
+
     /*
      * Delegate port operations to machine. Note that firewall configuration is
-     * fixed after initial provisioning, so updates use iptables to open ports.
+     * fixed after initial provisioning, so updates use iptables to open ports. The
+     * changes are queued per host and applied together before the next command runs.
      */
 
-    private void addIptablesRule(Integer port) {
-        if (getOwner().getJavaVirtualMachine().getInfrastructure().getConfig(WaratekInfrastructure.OPEN_IPTABLES)) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Using iptables to add access for TCP/{} to {}", port, machine);
+    private boolean isIptablesEnabled() {
+        return Boolean.TRUE.equals(getOwner().getJavaVirtualMachine().getInfrastructure().getConfig(WaratekInfrastructure.OPEN_IPTABLES));
+    }
+
+    /**
+     * The firewall model for the host, loaded from the rules actually on the host the
+     * first time it is used, so ports opened before a restart or rebind can be closed.
+     */
+    /** The firewall model held in our host's state, loaded from the host on first use. */
+    private HostFirewall getFirewall() {
+        HostFirewall firewall = getHostState().getFirewall();
+        synchronized (firewall) {
+            if (!firewall.isLoaded()) {
+                String rules = readIptablesRules();
+                if (rules != null) firewall.load(HostFirewall.parseOpenPorts(rules), HostFirewall.parseInsertedPorts(rules));
             }
-            List<String> commands = ImmutableList.of(
-                    IptablesCommands.insertIptablesRule(Chain.INPUT, Protocol.TCP, port, Policy.ACCEPT),
-                    IptablesCommands.saveIptablesRules(),
-                    IptablesCommands.listIptablesRule());
-            int result = machine.execCommands(String.format("Open iptables TCP/%d", port), commands);
-            if (result != 0) {
-                String msg = String.format("Error running iptables update for TCP/{} on {}", port, machine);
+        }
+        return firewall;
+    }
+
+    /** The rules in the host's INPUT chain, or {@code null} if they could not be read. */
+    private String readIptablesRules() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int result = machine.execCommands(MutableMap.of("out", out), "Read iptables rules", ImmutableList.of(BashCommands.sudo("iptables -S INPUT")));
+        if (result != 0) {
+            LOG.warn("Error reading iptables rules on {}", machine);
+            return null;
+        }
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+
+    /**
+     * Apply the queued iptables changes for the host in one {@code iptables-restore}
+     * transaction, followed by a single save.
+     * <p>
+     * If the update fails, the batch is dropped and the rules are read back from the host,
+     * so later commands do not retry it. Only the containers whose ports did not end up
+     * in the state they asked for are failed, the next time they run a command.
+     *
+     * @throws IllegalStateException if this container's ports could not be opened or closed
+     */
+    public void flushIptablesRules() {
+        if (!isIptablesEnabled()) return;
+        HostFirewall firewall = getFirewall();
+        synchronized (firewall) {
+            if (firewall.hasPending()) {
+                Set<Integer> ports = firewall.getPending();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Using iptables to update TCP/{} on {}", ports, machine);
+                }
+                List<String> commands = ImmutableList.of(
+                        String.format("printf '%s' | %s", firewall.getRestoreRules(), BashCommands.sudo("iptables-restore --noflush")),
+                        IptablesCommands.saveIptablesRules());
+                int result = machine.execCommands(String.format("Update iptables TCP/%s", Joiner.on(",").join(ports)), commands);
+                if (result == 0) {
+                    firewall.applied();
+                } else {
+                    LOG.warn("Error running iptables update for TCP/{} on {}, reading rules back", Joiner.on(",").join(ports), machine);
+                    String rules = readIptablesRules();
+                    if (rules != null) {
+                        firewall.failed(HostFirewall.parseOpenPorts(rules), HostFirewall.parseInsertedPorts(rules));
+                    } else {
+                        firewall.failed(null, null);
+                    }
+                }
+            }
+            Set<Integer> failures = firewall.takeFailures(getId());
+            if (!failures.isEmpty()) {
+                String msg = String.format("Error running iptables update for TCP/%s on %s", Joiner.on(",").join(failures), machine);
                 LOG.error(msg);
-                throw new RuntimeException(msg);
+                throw new IllegalStateException(msg);
+            }
+        }
+    }
+
+    private void queueOpen(int port) {
+        if (!isIptablesEnabled()) return;
+        getFirewall().queueOpen(port, getId());
+    }
+
+    private void queueClose(int port) {
+        if (!isIptablesEnabled()) return;
+        getFirewall().queueClose(port, getId());
+    }
+
+    /**
+     * The ports opened by iptables on a host, and the changes waiting to be applied,
+     * with the container that asked for each change. Ports waiting to be closed are
+     * no longer counted as open.
+     * <p>
+     * Rules inserted here are marked with {@link #RULE_COMMENT}, and only those are ever
+     * deleted; other ACCEPT rules on the host are left alone, even for ports that
+     * containers release.
+     */
+    static class HostFirewall {
+        static final String RULE_COMMENT = "brooklyn-waratek";
+
+        private static final Pattern ACCEPT_RULE = Pattern.compile(
+                "-A INPUT -p tcp(?: -m tcp)? --dport (\\d+)( -m comment --comment \"?" + RULE_COMMENT + "\"?)? -j ACCEPT");
+
+        /* Ports with ACCEPT rules that were not inserted here. */
+        private final Set<Integer> existing = Sets.newLinkedHashSet();
+        /* Ports with ACCEPT rules inserted here. */
+        private final Set<Integer> inserted = Sets.newLinkedHashSet();
+        private final Map<Integer, String> toOpen = Maps.newLinkedHashMap();
+        private final Map<Integer, String> toClose = Maps.newLinkedHashMap();
+        private final Multimap<String, Integer> failures = LinkedHashMultimap.create();
+        private boolean loaded;
+
+        /** The ports in the output of {@code iptables -S INPUT} with TCP ACCEPT rules. */
+        static Set<Integer> parseOpenPorts(String rules) {
+            return parsePorts(rules, false);
+        }
+
+        /** The ports in the output of {@code iptables -S INPUT} with TCP ACCEPT rules marked as inserted here. */
+        static Set<Integer> parseInsertedPorts(String rules) {
+            return parsePorts(rules, true);
+        }
+
+        private static Set<Integer> parsePorts(String rules, boolean insertedOnly) {
+            Set<Integer> ports = Sets.newLinkedHashSet();
+            Matcher matcher = ACCEPT_RULE.matcher(rules);
+            while (matcher.find()) {
+                if (!insertedOnly || matcher.group(2) != null) ports.add(Integer.valueOf(matcher.group(1)));
+            }
+            return ports;
+        }
+
+        synchronized boolean isLoaded() { return loaded; }
+
+        /**
+         * Replace the model of open ports with the rules on the host, dropping queued changes
+         * already made.
+         *
+         * @param actual all the ports with ACCEPT rules
+         * @param ours the ports whose rules were inserted here
+         */
+        synchronized void load(Set<Integer> actual, Set<Integer> ours) {
+            toOpen.keySet().removeAll(actual);
+            toClose.keySet().retainAll(ours);
+            reset(actual, ours);
+            inserted.removeAll(toClose.keySet());
+            loaded = true;
+        }
+
+        private void reset(Set<Integer> actual, Set<Integer> ours) {
+            existing.clear();
+            existing.addAll(actual);
+            existing.removeAll(ours);
+            inserted.clear();
+            inserted.addAll(ours);
+        }
+
+        synchronized void queueOpen(int port, String owner) {
+            if (toClose.remove(port) != null) {
+                inserted.add(port);
+            } else if (!existing.contains(port) && !inserted.contains(port) && !toOpen.containsKey(port)) {
+                toOpen.put(port, owner);
             }
         }
+
+        synchronized void queueClose(int port, String owner) {
+            if (toOpen.remove(port) == null && inserted.remove(port)) {
+                toClose.put(port, owner);
+            }
+        }
+
+        synchronized Set<Integer> getOpen() {
+            return ImmutableSet.copyOf(Iterables.concat(existing, inserted));
+        }
+
+        synchronized Set<Integer> getInserted() {
+            return ImmutableSet.copyOf(inserted);
+        }
+
+        synchronized boolean hasPending() {
+            return !toOpen.isEmpty() || !toClose.isEmpty();
+        }
+
+        synchronized Set<Integer> getPending() {
+            return ImmutableSet.copyOf(Iterables.concat(toOpen.keySet(), toClose.keySet()));
+        }
+
+        /** The pending changes as input for {@code iptables-restore}, with escaped newlines for {@code printf}. */
+        synchronized String getRestoreRules() {
+            StringBuilder rules = new StringBuilder("*filter\\n");
+            for (Integer port : toOpen.keySet()) {
+                rules.append(String.format("-I INPUT -p tcp --dport %d -m comment --comment %s -j ACCEPT\\n", port, RULE_COMMENT));
+            }
+            for (Integer port : toClose.keySet()) {
+                rules.append(String.format("-D INPUT -p tcp --dport %d -m comment --comment %s -j ACCEPT\\n", port, RULE_COMMENT));
+            }
+            rules.append("COMMIT\\n");
+            return rules.toString();
+        }
+
+        /** The pending changes were made. */
+        synchronized void applied() {
+            inserted.addAll(toOpen.keySet());
+            toOpen.clear();
+            toClose.clear();
+        }
+
+        /**
+         * The pending changes failed, and the host has the given open ports and rules inserted
+         * here, or {@code null} if they could not be read. The batch is dropped, and each change
+         * that did not take effect is recorded as a failure for the container that asked for it.
+         */
+        synchronized void failed(Set<Integer> actual, Set<Integer> ours) {
+            for (Map.Entry<Integer, String> entry : toOpen.entrySet()) {
+                if (actual == null || !actual.contains(entry.getKey())) failures.put(entry.getValue(), entry.getKey());
+            }
+            for (Map.Entry<Integer, String> entry : toClose.entrySet()) {
+                if (ours == null || ours.contains(entry.getKey())) failures.put(entry.getValue(), entry.getKey());
+            }
+            toOpen.clear();
+            toClose.clear();
+            if (actual != null && ours != null) {
+                reset(actual, ours);
+            } else {
+                // Read the rules again before the next change
+                loaded = false;
+            }
+        }
+
+        /** The ports that failed to change for the container, which are then forgotten. */
+        synchronized Set<Integer> takeFailures(String owner) {
+            return ImmutableSet.copyOf(failures.removeAll(owner));
+        }
     }
 
     @Override
     public boolean obtainSpecificPort(int portNumber) {
         boolean result = machine.obtainSpecificPort(portNumber);
         if (result) {
-            addIptablesRule(portNumber);
+            queueOpen(portNumber);
         }
         return result;
     }
@@ -200,45 +604,102 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
     @Override
     public int obtainPort(PortRange range) {
         int portNumber = machine.obtainPort(range);
-        addIptablesRule(portNumber);
+        if (portNumber > 0) queueOpen(portNumber);
         return portNumber;
     }
 
     @Override
     public void releasePort(int portNumber) {
         machine.releasePort(portNumber);
+        queueClose(portNumber);
+    }
+
+    /*
+     * Commands for the same JVC are serialised, and a bounded number of commands
+     * for different JVCs run concurrently on the same host. A thread holds at most
+     * one permit, however many JVC mutexes it takes.
+     */
+
+    /** The mutex on the host serialising lifecycle operations for a JVC. */
+    public static String getJvcMutexId(String jvcName) {
+        return "jvc:" + jvcName;
+    }
+
+    /** The state of our host, holding the permits limiting concurrent SSH commands. */
+    private WaratekHostState getHostState() {
+        return ((WaratekMachineLocation) getParent()).getHostState();
+    }
+
+    /**
+     * Take the JVC mutex and a permit, unless this thread already holds the mutex.
+     *
+     * @return whether they were acquired, and so must be released
+     */
+    private boolean acquireExec(String description) {
+        String mutexId = getJvcMutexId(jvc.getJvcName());
+        if (EXECUTING.get().contains(mutexId)) return false;
+        try {
+            machine.acquireMutex(mutexId, description);
+            try {
+                getHostState().acquireExecPermit();
+            } catch (InterruptedException ie) {
+                machine.releaseMutex(mutexId);
+                throw ie;
+            }
+        } catch (InterruptedException ie) {
+            throw Exceptions.propagate(ie);
+        }
+        EXECUTING.get().add(mutexId);
+        return true;
     }
 
+    private void releaseExec(boolean acquired) {
+        if (!acquired) return;
+        String mutexId = getJvcMutexId(jvc.getJvcName());
+        Set<String> held = EXECUTING.get();
+        held.remove(mutexId);
+        if (held.isEmpty()) EXECUTING.remove();
+        getHostState().releaseExecPermit();
+        machine.releaseMutex(mutexId);
+    }
+
+    /*
+     * Scripts and commands run through the host machine's cached SshTool, shared by
+     * all the containers on that host, rather than a tool for each container.
+     */
+
     @Override
     protected int execWithLogging(Map<String,?> props, String summaryForLogging, List<String> commands, Map env, final Closure<Integer> execCommand) {
+        boolean acquired = acquireExec("execWithLogging");
         try {
-            machine.acquireMutex("exec", "execWithLogging");
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Intercepted execWithLogging {}: {}", summaryForLogging, Strings.join(commands, ";"));
             }
-            return super.execWithLogging(injectWaratekProps(props), summaryForLogging, injectWaratekCommands(commands), injectWaratekEnvironment(env), execCommand);
-        } catch (InterruptedException ie) {
-            throw Exceptions.propagate(ie);
+            Injection current = getInjection();
+            return super.execWithLogging(injectWaratekProps(current, props), summaryForLogging, injectWaratekCommands(current, commands), injectWaratekEnvironment(current, env), execCommand);
         } finally {
-            machine.releaseMutex("exec");
+            releaseExec(acquired);
         }
     }
 
     @Override
     public int execScript(Map<String,?> props, String summaryForLogging, List<String> commands, Map<String,?> env) {
+        // Handle check-running from the cached JVC status, without locking or SSH
+        if (summaryForLogging != null && summaryForLogging.startsWith(AbstractSoftwareProcessSshDriver.CHECK_RUNNING)) {
+            String status = getJvcStatus();
+            if (LOG.isDebugEnabled()) LOG.debug("Calculating check-running status based on: {}", status);
+            return (status == null || JavaVirtualContainer.STATUS_SHUT_OFF.equals(status)) ? 1 : 0;
+        }
+
+        flushIptablesRules();
+        boolean acquired = acquireExec("execScript");
         try {
-            machine.acquireMutex("exec", "execWithLogging");
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Intercepted execScript {}: {}", summaryForLogging, Strings.join(commands, ";"));
             }
             boolean ignoreResult = false;
             if (summaryForLogging != null) {
-                // Handle check-running by retrieving JVC status directly
-                if (summaryForLogging.startsWith(AbstractSoftwareProcessSshDriver.CHECK_RUNNING)) {
-                    String status = jvc.getAttribute(WaratekAttributes.STATUS);
-                    LOG.debug("Calculating check-running status based on: {}", status);
-                    return JavaVirtualContainer.STATUS_SHUT_OFF.equals(status) ? 1 : 0;
-                } else if (summaryForLogging.startsWith(AbstractSoftwareProcessSshDriver.INSTALLING)) {
+                if (summaryForLogging.startsWith(AbstractSoftwareProcessSshDriver.INSTALLING)) {
                     jvc.shutDown();
                 } else if (summaryForLogging.startsWith(AbstractSoftwareProcessSshDriver.STOPPING)) {
                     jvc.shutDown();
@@ -249,34 +710,53 @@ public class WaratekContainerLocation extends SshMachineLocation implements Dyna
                     ignoreResult = true;
                 }
             }
-            int result = super.execScript(injectWaratekProps(props), summaryForLogging, injectWaratekCommands(commands), injectWaratekEnvironment(env));
+            Injection current = getInjection();
+            int result = machine.execScript(injectWaratekProps(current, props), summaryForLogging, injectWaratekCommands(current, commands), injectWaratekEnvironment(current, env));
             return ignoreResult ? 0 : result;
-        } catch (InterruptedException ie) {
-            throw Exceptions.propagate(ie);
         } finally {
-            machine.releaseMutex("exec");
+            releaseExec(acquired);
+        }
+    }
+
+    /**
+     * The JVC status from the JVM's metrics sweep, read over JMX if older than
+     * {@link JavaVirtualContainer#STATUS_MAX_AGE}. Falls back to the status sensor if
+     * JMX cannot be read, rather than failing the check.
+     */
+    private String getJvcStatus() {
+        JvcMetricsCollector collector = getJavaVirtualMachine().getJvcMetricsCollector();
+        if (collector == null) {
+            return jvc.getAttribute(WaratekAttributes.STATUS);
+        }
+        try {
+            return collector.getStatus(jvc.getJvcName(), jvc.getConfig(JavaVirtualContainer.STATUS_MAX_AGE));
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            if (LOG.isDebugEnabled()) LOG.debug("Error reading status of {} over JMX, using sensor: {}", jvc.getJvcName(), e.getMessage());
+            return jvc.getAttribute(WaratekAttributes.STATUS);
         }
     }
 
     @Override
     public int execCommands(Map<String,?> props, String summaryForLogging, List<String> commands, Map<String,?> env) {
+        flushIptablesRules();
+        boolean acquired = acquireExec("execCommands");
         try {
-            machine.acquireMutex("exec", "execWithLogging");
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Intercepted execCommands {}: {}", summaryForLogging, Strings.join(commands, ";"));
             }
-            return super.execCommands(injectWaratekProps(props), summaryForLogging, injectWaratekCommands(commands), injectWaratekEnvironment(env));
-        } catch (InterruptedException ie) {
-            throw Exceptions.propagate(ie);
+            Injection current = getInjection();
+            return machine.execCommands(injectWaratekProps(current, props), summaryForLogging, injectWaratekCommands(current, commands), injectWaratekEnvironment(current, env));
         } finally {
-            machine.releaseMutex("exec");
+            releaseExec(acquired);
         }
     }
 
     @Override
     public void close() throws IOException {
-        // TODO close down resources used by this container only
-        LOG.info("Close called on JVC location (ignored): {}", this);
+        // TODO close down other resources used by this container only
+        LOG.info("Close called on JVC location: {}", this);
+        unsubscribeInjection();
     }
 
     @Override
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.waratek;
+
+import java.util.concurrent.Semaphore;
+
+import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
+import brooklyn.location.waratek.WaratekContainerLocation.HostFirewall;
+
+/**
+ * State shared by all the JVMs and containers on one host.
+ * <p>
+ * Held by the {@link WaratekLocation} for each underlying machine, and discarded when
+ * the machine is released.
+ */
+class WaratekHostState {
+
+    private final Semaphore execPermits;
+    private final HostFirewall firewall = new HostFirewall();
+
+    /* The number of nested commands the current thread is running on this host. */
+    private final ThreadLocal<Integer> held = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+
+    /**
+     * @param maxConcurrentExec the {@link JavaVirtualMachine#MAX_CONCURRENT_EXEC permits} for SSH commands on the host
+     */
+    WaratekHostState(int maxConcurrentExec) {
+        this.execPermits = new Semaphore(Math.max(1, maxConcurrentExec), true);
+    }
+
+    /**
+     * Take a permit to run an SSH command on the host, unless the current thread already
+     * holds one, so a command run while another is in progress does not wait on itself.
+     * Each call must be matched by a call to {@link #releaseExecPermit()}.
+     */
+    void acquireExecPermit() throws InterruptedException {
+        int count = held.get();
+        if (count == 0) execPermits.acquire();
+        held.set(count + 1);
+    }
+
+    void releaseExecPermit() {
+        int count = held.get() - 1;
+        if (count > 0) {
+            held.set(count);
+        } else {
+            held.remove();
+            execPermits.release();
+        }
+    }
+
+    /** The iptables rules for the ports used by the containers on the host. */
+    HostFirewall getFirewall() {
+        return firewall;
+    }
+
+    int getAvailableExecPermits() {
+        return execPermits.availablePermits();
+    }
+
+}
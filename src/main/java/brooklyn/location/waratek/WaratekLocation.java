@@ -19,6 +19,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +30,7 @@ import brooklyn.entity.basic.Entities;
 import brooklyn.entity.group.DynamicCluster.NodePlacementStrategy;
 import brooklyn.entity.java.UsesJava;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
+import brooklyn.entity.waratek.cloudvm.WaratekBinPackingPlacementStrategy;
 import brooklyn.entity.waratek.cloudvm.WaratekInfrastructure;
 import brooklyn.entity.waratek.cloudvm.WaratekNodePlacementStrategy;
 import brooklyn.location.Location;
@@ -40,17 +43,29 @@ import brooklyn.location.basic.Machines;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.cloud.AvailabilityZoneExtension;
 import brooklyn.location.dynamic.DynamicLocation;
+import brooklyn.management.Task;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.flags.SetFromFlag;
 import brooklyn.util.guava.Maybe;
 import brooklyn.util.javalang.Reflections;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
 
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 
 public class WaratekLocation extends AbstractLocation implements WaratekVirtualLocation, MachineProvisioningLocation<MachineLocation>,
@@ -58,6 +73,9 @@ public class WaratekLocation extends AbstractLocation implements WaratekVirtualL
 
 	private static final Logger LOG = LoggerFactory.getLogger(WaratekLocation.class);
 
+    private static final Duration RESERVE_BACKOFF_INITIAL = Duration.millis(100);
+    private static final Duration RESERVE_BACKOFF_MAX = Duration.seconds(5);
+
     @SetFromFlag("mutex")
     private Object mutex;
 
@@ -72,9 +90,10 @@ public class WaratekLocation extends AbstractLocation implements WaratekVirtualL
 
     /* Mappings for provisioned locations */
 
-    private final Set<MachineLocation> obtained = Sets.newHashSet();
-    private final Multimap<SshMachineLocation, String> machines = HashMultimap.create();
-    private final Map<String, SshMachineLocation> containers = Maps.newHashMap();
+    private final Set<MachineLocation> obtained = Sets.newSetFromMap(Maps.<MachineLocation, Boolean>newConcurrentMap());
+    private final SetMultimap<SshMachineLocation, String> machines = Multimaps.synchronizedSetMultimap(HashMultimap.<SshMachineLocation, String>create());
+    private final ConcurrentMap<String, SshMachineLocation> containers = Maps.newConcurrentMap();
+    private final ConcurrentMap<SshMachineLocation, WaratekHostState> hosts = Maps.newConcurrentMap();
 
     public WaratekLocation() {
         this(Maps.newLinkedHashMap());
@@ -92,7 +111,11 @@ public class WaratekLocation extends AbstractLocation implements WaratekVirtualL
     public void init() {
         super.init();
         if (strategy == null) {
-            strategy = new WaratekNodePlacementStrategy();
+            if (infrastructure != null && Boolean.TRUE.equals(infrastructure.getConfig(WaratekInfrastructure.BIN_PACKING_PLACEMENT))) {
+                strategy = new WaratekBinPackingPlacementStrategy(infrastructure, null, WaratekBinPackingPlacementStrategy.DEFAULT_CPU_LIMIT);
+            } else {
+                strategy = new WaratekNodePlacementStrategy(infrastructure);
+            }
         }
         addExtension(AvailabilityZoneExtension.class, new WaratekMachineExtension(getManagementContext(), this));
     }
@@ -111,78 +134,213 @@ public class WaratekLocation extends AbstractLocation implements WaratekVirtualL
 
     @Override
     public MachineLocation obtain(Map<?,?> flags) throws NoMachinesAvailableException {
-        synchronized (mutex) {
-            // Check context for entitiy implementing UsesJava interface
-            Object context = flags.get(LocationConfigKeys.CALLER_CONTEXT.getName());
-            if (context instanceof Entity) {
-                List<Class<?>> implementations = Reflections.getAllInterfaces(context.getClass());
-                boolean usesJava = Iterables.any(implementations, Predicates.<Class>equalTo(UsesJava.class));
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Context {}: UsesJava {}", context.toString(), Boolean.toString(usesJava));
-                }
-                if (!usesJava) {
-                    // Return an SshMachineLocation from the provisioner
+        return Iterables.getOnlyElement(obtain(1, flags));
+    }
+
+    /**
+     * Obtain a batch of machines or containers.
+     * <p>
+     * Placement runs once for the whole batch, and the containers for each JVM
+     * are then obtained in parallel, so that a large resize takes about as long
+     * as the slowest JVM rather than the sum of all the individual requests.
+     */
+    public List<MachineLocation> obtain(int count, Map<?,?> flags) throws NoMachinesAvailableException {
+        // Check context for entitiy implementing UsesJava interface
+        final Object context = flags.get(LocationConfigKeys.CALLER_CONTEXT.getName());
+        if (context instanceof Entity) {
+            List<Class<?>> implementations = Reflections.getAllInterfaces(context.getClass());
+            boolean usesJava = Iterables.any(implementations, Predicates.<Class>equalTo(UsesJava.class));
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Context {}: UsesJava {}", context.toString(), Boolean.toString(usesJava));
+            }
+            if (!usesJava) {
+                // Return SshMachineLocations from the provisioner
+                List<MachineLocation> result = Lists.newArrayList();
+                for (int i = 0; i < count; i++) {
                     SshMachineLocation machine = provisioner.obtain(flags);
                     obtained.add(machine);
-                    return machine;
+                    result.add(machine);
                 }
-            } else {
-                throw new IllegalStateException("Invalid location context: " + context);
+                return result;
             }
+        } else {
+            throw new IllegalStateException("Invalid location context: " + context);
+        }
 
-            // Use the waratek strategy to add a single JVM
-            List<Location> jvms = getExtension(AvailabilityZoneExtension.class).getAllSubLocations();
-            List<Location> added = strategy.locationsForAdditions(null, jvms, 1);
-            WaratekMachineLocation machine = (WaratekMachineLocation) Iterables.getOnlyElement(added);
-            JavaVirtualMachine jvm = machine.getOwner();
+        // Reserve capacity on the JVMs, then wait and create the JVCs outside the lock
+        final Multiset<WaratekMachineLocation> reserved = reserveMachines(count);
+        try {
+            // Run a single JVM inline, otherwise in parallel
+            if (reserved.elementSet().size() == 1) {
+                WaratekMachineLocation machine = Iterables.getOnlyElement(reserved.elementSet());
+                return Lists.<MachineLocation>newArrayList(obtainContainers(machine, count, context, Lists.<WaratekContainerLocation>newArrayList()));
+            }
 
-            // Now wait until the JVM has started up
-            Entities.waitForServiceUp(jvm);
+            Map<WaratekMachineLocation, Task<List<WaratekContainerLocation>>> tasks = Maps.newLinkedHashMap();
+            final ListMultimap<WaratekMachineLocation, WaratekContainerLocation> claimed = Multimaps.synchronizedListMultimap(ArrayListMultimap.<WaratekMachineLocation, WaratekContainerLocation>create());
+            for (final WaratekMachineLocation machine : reserved.elementSet()) {
+                Task<List<WaratekContainerLocation>> task = Tasks.<List<WaratekContainerLocation>>builder()
+                        .name("Obtain containers on " + machine.getOwner().getJvmName())
+                        .body(new Callable<List<WaratekContainerLocation>>() {
+                            @Override
+                            public List<WaratekContainerLocation> call() throws Exception {
+                                return obtainContainers(machine, reserved.count(machine), context, claimed.get(machine));
+                            }
+                        })
+                        .build();
+                tasks.put(machine, Entities.submit(infrastructure, task));
+            }
+            ListMultimap<WaratekMachineLocation, WaratekContainerLocation> obtained = ArrayListMultimap.create();
+            Exception error = null;
+            for (Map.Entry<WaratekMachineLocation, Task<List<WaratekContainerLocation>>> entry : tasks.entrySet()) {
+                try {
+                    obtained.putAll(entry.getKey(), entry.getValue().getUnchecked());
+                } catch (Exception e) {
+                    if (error == null) error = e;
+                }
+            }
+            if (error != null) {
+                // Give back the containers obtained on the other JVMs: claimed JVCs go back to the pool, new ones are removed
+                for (WaratekMachineLocation machine : obtained.keySet()) {
+                    List<WaratekContainerLocation> pooled = Lists.newArrayList();
+                    for (WaratekContainerLocation container : obtained.get(machine)) {
+                        release(container);
+                        if (claimed.containsEntry(machine, container)) {
+                            pooled.add(container);
+                        } else {
+                            machine.release(container);
+                        }
+                    }
+                    machine.unclaim(pooled);
+                }
+                throw Exceptions.propagate(error);
+            }
+            return Lists.<MachineLocation>newArrayList(obtained.values());
+        } finally {
+            for (WaratekMachineLocation machine : reserved.elementSet()) {
+                machine.cancelReservation(reserved.count(machine));
+            }
+        }
+    }
+
+    /**
+     * Wait for the JVM to start and obtain new JVC locations, saving the mappings.
+     */
+    private List<WaratekContainerLocation> obtainContainers(WaratekMachineLocation machine, int count, Object context, List<WaratekContainerLocation> claimed) throws NoMachinesAvailableException {
+        JavaVirtualMachine jvm = machine.getOwner();
+
+        // Now wait until the JVM has started up
+        Entities.waitForServiceUp(jvm);
 
-            // Obtain a new JVC location, save and return it
-            WaratekContainerLocation container = machine.obtain(MutableMap.of("entity", context));
+        // Obtain new JVC locations, save and return them
+        List<WaratekContainerLocation> added = machine.obtain(count, MutableMap.of("entity", context), claimed);
 
-            Maybe<SshMachineLocation> deployed = Machines.findUniqueSshMachineLocation(jvm.getLocations());
-            if (deployed.isPresent()) {
+        Maybe<SshMachineLocation> deployed = Machines.findUniqueSshMachineLocation(jvm.getLocations());
+        if (deployed.isPresent()) {
+            for (WaratekContainerLocation container : added) {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Storing container mapping {} to {}", deployed.toString(), container.getId());
                 }
                 machines.put(deployed.get(), container.getId());
                 containers.put(container.getId(), deployed.get());
             }
-            return container;
         }
+        return added;
+    }
+
+    /**
+     * Use the placement strategy to select JVMs and reserve containers on them.
+     * <p>
+     * Placement may wait for new JVMs to start, so it runs without holding the location
+     * mutex. If another request has taken the capacity in the meantime, the reservation
+     * fails and placement is run again, adding more JVMs if needed. This is repeated, with
+     * a bounded backoff between attempts, until the reservation succeeds, the strategy can no
+     * longer place the containers, or the JVM start timeout has passed.
+     */
+    private Multiset<WaratekMachineLocation> reserveMachines(int count) throws NoMachinesAvailableException {
+        Duration timeout = infrastructure.getConfig(JavaVirtualMachine.START_TIMEOUT);
+        long deadline = System.currentTimeMillis() + timeout.toMilliseconds();
+        Duration backoff = RESERVE_BACKOFF_INITIAL;
+        for (int attempt = 1; ; attempt++) {
+            List<Location> jvms = getExtension(AvailabilityZoneExtension.class).getAllSubLocations();
+            List<Location> added;
+            try {
+                added = strategy.locationsForAdditions(null, jvms, count);
+            } catch (RuntimeException e) {
+                NoMachinesAvailableException nmae = Iterables.getFirst(Iterables.filter(Throwables.getCausalChain(e), NoMachinesAvailableException.class), null);
+                if (nmae != null) throw nmae;
+                throw e;
+            }
+            Multiset<WaratekMachineLocation> reserved = LinkedHashMultiset.create();
+            for (Location location : added) {
+                reserved.add((WaratekMachineLocation) location);
+            }
+            WaratekMachineLocation full;
+            synchronized (mutex) {
+                full = reserve(reserved);
+                if (full == null) {
+                    return reserved;
+                }
+            }
+            String failure = String.format("No containers available at %s", full.getOwner().getJvmName());
+            if (System.currentTimeMillis() > deadline) {
+                throw new NoMachinesAvailableException(String.format("%s after %d placement attempts in %s", failure, attempt, timeout));
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Placement attempt {} for {} containers failed, retrying in {}: {}", new Object[] { attempt, count, backoff, failure });
+            }
+            Time.sleep(Duration.millis(Math.min(backoff.toMilliseconds(), Math.max(0L, deadline - System.currentTimeMillis()))));
+            backoff = Duration.millis(Math.min(backoff.toMilliseconds() * 2, RESERVE_BACKOFF_MAX.toMilliseconds()));
+        }
+    }
+
+    /**
+     * Reserve all containers or none.
+     *
+     * @return the JVM that had no capacity left, or {@code null} if all were reserved
+     */
+    private WaratekMachineLocation reserve(Multiset<WaratekMachineLocation> reserved) {
+        List<WaratekMachineLocation> done = Lists.newArrayList();
+        for (WaratekMachineLocation machine : reserved.elementSet()) {
+            if (!machine.reserve(reserved.count(machine))) {
+                for (WaratekMachineLocation previous : done) {
+                    previous.cancelReservation(reserved.count(previous));
+                }
+                return machine;
+            }
+            done.add(machine);
+        }
+        return null;
     }
 
     @Override
     public void release(MachineLocation machine) {
         if (provisioner != null) {
-            synchronized (mutex) {
-                String id = machine.getId();
-                SshMachineLocation ssh = containers.remove(id);
-                if (ssh != null) {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Request to remove container mapping {} to {}", ssh, id);
-                    }
-                    if (machines.remove(ssh, id)) {
-                        if (machines.get(ssh).isEmpty()) {
-                            if (LOG.isDebugEnabled()) {
-                                // TODO shut down JVM if too many open?
-                                LOG.debug("Empty JVM at {}", ssh);
-                            }
+            String id = machine.getId();
+            SshMachineLocation ssh = containers.remove(id);
+            if (ssh != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Request to remove container mapping {} to {}", ssh, id);
+                }
+                if (machines.remove(ssh, id)) {
+                    if (machines.get(ssh).isEmpty()) {
+                        if (LOG.isDebugEnabled()) {
+                            // TODO shut down JVM if too many open?
+                            LOG.debug("Empty JVM at {}", ssh);
                         }
-                    } else {
-                        throw new IllegalArgumentException("Request to release "+machine+", but container mapping not found");
                     }
                 } else {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Request to release machine {}", machine);
-                    }
-                    if (obtained.remove(machine)) {
-                        provisioner.release((SshMachineLocation) machine);
-                    } else {
-                        throw new IllegalArgumentException("Request to release "+machine+", but this machine is not currently allocated");
-                    }
+                    throw new IllegalArgumentException("Request to release "+machine+", but container mapping not found");
+                }
+            } else {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Request to release machine {}", machine);
+                }
+                if (obtained.remove(machine)) {
+                    hosts.remove(machine);
+                    provisioner.release((SshMachineLocation) machine);
+                } else {
+                    throw new IllegalArgumentException("Request to release "+machine+", but this machine is not currently allocated");
                 }
             }
         } else {
@@ -190,6 +348,21 @@ public class WaratekLocation extends AbstractLocation implements WaratekVirtualL
         }
     }
 
+    /**
+     * The state shared by the JVMs on a host, created on first use with the given
+     * {@link JavaVirtualMachine#MAX_CONCURRENT_EXEC permits} and discarded when the
+     * host is released.
+     */
+    WaratekHostState getHostState(SshMachineLocation machine, int maxConcurrentExec) {
+        WaratekHostState state = hosts.get(machine);
+        if (state == null) {
+            WaratekHostState created = new WaratekHostState(maxConcurrentExec);
+            state = hosts.putIfAbsent(machine, created);
+            if (state == null) state = created;
+        }
+        return state;
+    }
+
     @Override
     public Map<String,Object> getProvisioningFlags(Collection<String> tags) {
         return Maps.<String,Object>newLinkedHashMap();
@@ -42,7 +42,7 @@ public class WaratekMachineExtension extends AbstractAvailabilityZoneExtension {
         for (Entity entity : location.getJvmList()) {
             JavaVirtualMachine jvm = (JavaVirtualMachine) entity;
             WaratekMachineLocation machine = jvm.getDynamicLocation();
-            result.add(machine);
+            if (machine != null) result.add(machine); // Not yet started
         }
         return result;
     }
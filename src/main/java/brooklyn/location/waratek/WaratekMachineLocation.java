@@ -19,15 +19,17 @@ import java.net.InetAddress;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Entities;
 import brooklyn.entity.group.DynamicCluster;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualContainer;
 import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
-import brooklyn.entity.waratek.cloudvm.WaratekAttributes;
 import brooklyn.entity.waratek.cloudvm.WaratekInfrastructure;
 import brooklyn.location.MachineDetails;
 import brooklyn.location.MachineLocation;
@@ -37,8 +39,11 @@ import brooklyn.location.OsDetails;
 import brooklyn.location.basic.AbstractLocation;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.dynamic.DynamicLocation;
+import brooklyn.management.Task;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.task.Tasks;
 
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.base.Optional;
@@ -57,6 +62,11 @@ public class WaratekMachineLocation extends AbstractLocation implements MachineL
     @SetFromFlag("owner")
     private JavaVirtualMachine jvm;
 
+    /* Containers reserved by callers that have not yet been obtained. */
+
+    private final Object lock = new Object[0];
+    private final AtomicInteger reserved = new AtomicInteger(0);
+
     public WaratekMachineLocation() {
         this(Maps.newLinkedHashMap());
     }
@@ -75,36 +85,170 @@ public class WaratekMachineLocation extends AbstractLocation implements MachineL
 
     @Override
     public WaratekContainerLocation obtain(Map<?,?> flags) throws NoMachinesAvailableException {
+        return Iterables.getOnlyElement(obtain(1, flags));
+    }
+
+    /**
+     * Obtain a batch of containers on this JVM.
+     * <p>
+     * Stopped JVCs are claimed first, and any remaining containers are then
+     * defined and started in parallel, rather than one after the other.
+     */
+    public List<WaratekContainerLocation> obtain(int count, Map<?,?> flags) throws NoMachinesAvailableException {
+        return obtain(count, flags, Lists.<WaratekContainerLocation>newArrayList());
+    }
+
+    /**
+     * As {@link #obtain(int, Map)}, also adding the containers that were claimed from the
+     * pool of stopped JVCs, rather than newly created, to {@code claimed}.
+     */
+    List<WaratekContainerLocation> obtain(int count, Map<?,?> flags, List<WaratekContainerLocation> claimed) throws NoMachinesAvailableException {
         Integer maxSize = jvm.getConfig(JavaVirtualMachine.JVC_CLUSTER_MAX_SIZE);
-        Integer currentSize = jvm.getAttribute(WaratekAttributes.JVC_COUNT);
-        Iterable<Entity> available = jvm.getAvailableJvcs();
         Entity entity = (Entity) flags.get("entity");
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("JVM {}: {} containers, {} available, max {}", new Object[] { jvm.getJvmName(), currentSize, Iterables.size(available), maxSize });
-        }
+        List<WaratekContainerLocation> result = Lists.newArrayList();
 
         // also try to satisfy the affinty rules etc.
 
-        // If there are no stopped JVCs then add a new one
-        if (Iterables.isEmpty(available)) {
-            if (currentSize != null && currentSize >= maxSize) {
+        // Claim stopped JVCs from the pool if possible; only this step must be atomic for the JVM
+        synchronized (lock) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("JVM {}: {} requested, {} containers, {} available, {} reserved, max {}",
+                        new Object[] { jvm.getJvmName(), count, jvm.getCurrentSize(), jvm.getStoppedJvcs(), reserved.get(), maxSize });
+            }
+            for (Entity jvc : jvm.claimAvailableJvcs(count, entity)) {
+                result.add(((JavaVirtualContainer) jvc).getDynamicLocation());
+            }
+        }
+        claimed.addAll(result);
+
+        // If there are not enough stopped JVCs then add new ones
+        int remaining = count - result.size();
+        jvm.recordJvcPoolUsage(result.size(), remaining);
+        if (remaining > 0) {
+            Integer currentSize = jvm.getCurrentSize();
+            if (currentSize != null && currentSize + remaining > maxSize) {
+                unclaim(result);
                 throw new NoMachinesAvailableException(String.format("Limit of %d containers reached at %s", maxSize, jvm.getJvmName()));
             }
+            boolean success = false;
+            try {
+                result.addAll(addContainers(remaining, entity));
+                success = true;
+            } finally {
+                if (!success) unclaim(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add new containers to the JVC cluster, creating them in parallel.
+     * <p>
+     * Callers should have {@link #reserve(int) reserved} capacity for the containers.
+     */
+    public List<WaratekContainerLocation> addContainers(int count, final Entity entity) throws NoMachinesAvailableException {
+        if (count == 1) {
+            return Lists.newArrayList(addContainer(entity));
+        }
+
+        List<Task<WaratekContainerLocation>> tasks = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            Task<WaratekContainerLocation> task = Tasks.<WaratekContainerLocation>builder()
+                    .name("Add container to " + jvm.getJvmName())
+                    .body(new Callable<WaratekContainerLocation>() {
+                        @Override
+                        public WaratekContainerLocation call() throws Exception {
+                            return addContainer(entity);
+                        }
+                    })
+                    .build();
+            tasks.add(Entities.submit(jvm, task));
+        }
+
+        List<WaratekContainerLocation> result = Lists.newArrayList();
+        Exception error = null;
+        for (Task<WaratekContainerLocation> task : tasks) {
+            try {
+                result.add(task.getUnchecked());
+            } catch (Exception e) {
+                LOG.warn("JVM {}: failed to add container: {}", jvm.getJvmName(), e.getMessage());
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) {
+            unclaim(result);
+            throw Exceptions.propagate(error);
+        }
+        return result;
+    }
 
-            // increase size of JVC cluster
+    private WaratekContainerLocation addContainer(Entity entity) throws NoMachinesAvailableException {
+        // increase size of JVC cluster
+        DynamicCluster cluster = jvm.getJvcCluster();
+        Optional<Entity> added = cluster.addInSingleLocation(this, MutableMap.of("entity", entity));
+        if (!added.isPresent()) {
+            throw new NoMachinesAvailableException(String.format("Failed to create containers reached in %s", jvm.getJvmName()));
+        }
+        return ((JavaVirtualContainer) added.get()).getDynamicLocation();
+    }
+
+    /**
+     * Remove up to {@code count} stopped JVCs from the JVC cluster.
+     * <p>
+     * The containers are no longer available to be obtained, and should be stopped by the caller.
+     */
+    public List<JavaVirtualContainer> removeAvailable(int count) {
+        List<JavaVirtualContainer> removed = Lists.newArrayList();
+        synchronized (lock) {
             DynamicCluster cluster = jvm.getJvcCluster();
-            Optional<Entity> added = cluster.addInSingleLocation(this, MutableMap.of("entity", entity));
-            if (!added.isPresent()) {
-                throw new NoMachinesAvailableException(String.format("Failed to create containers reached in %s", jvm.getJvmName()));
+            for (Entity jvc : jvm.takeAvailableJvcs(count)) {
+                if (cluster.removeMember(jvc)) {
+                    removed.add((JavaVirtualContainer) jvc);
+                }
             }
-            return ((JavaVirtualContainer) added.get()).getDynamicLocation();
-        } else {
-            WaratekContainerLocation container = ((JavaVirtualContainer) Iterables.getLast(available)).getDynamicLocation();
-            container.setEntity(entity);
-            return container;
+        }
+        return removed;
+    }
+
+    /** Return claimed containers to the pool of available JVCs. */
+    void unclaim(Iterable<WaratekContainerLocation> containers) {
+        for (WaratekContainerLocation container : containers) {
+            container.setEntity(null);
+        }
+    }
+
+    /**
+     * Reserve capacity for a single container on this JVM.
+     * <p>
+     * Reservations are counted by {@link #getCurrentJvcCount()} and {@link #getAvailableJvcCount()}
+     * so that placement decisions made concurrently do not overcommit the JVM. Callers must
+     * call {@link #cancelReservation()} once the container has been obtained, or on failure.
+     *
+     * @return {@code false} if there is no capacity left on the JVM
+     */
+    public boolean reserve() {
+        return reserve(1);
+    }
+
+    /** @see #reserve() */
+    public boolean reserve(int count) {
+        synchronized (lock) {
+            if (getAvailableJvcCount() < count) {
+                return false;
+            }
+            reserved.addAndGet(count);
+            return true;
         }
     }
 
+    public void cancelReservation() {
+        cancelReservation(1);
+    }
+
+    public void cancelReservation(int count) {
+        reserved.addAndGet(-count);
+    }
+
     @Override
     public MachineProvisioningLocation<WaratekContainerLocation> newSubLocation(Map<?, ?> newFlags) {
         throw new UnsupportedOperationException();
@@ -165,12 +309,26 @@ public class WaratekMachineLocation extends AbstractLocation implements MachineL
         return machine;
     }
 
+    /**
+     * The state shared with the other JVMs on our host, including the permits limiting
+     * concurrent SSH commands, sized by {@link JavaVirtualMachine#MAX_CONCURRENT_EXEC}
+     * of the first JVM to use them.
+     */
+    WaratekHostState getHostState() {
+        Integer permits = jvm.getConfig(JavaVirtualMachine.MAX_CONCURRENT_EXEC);
+        return ((WaratekLocation) getParent()).getHostState(machine, (permits == null) ? 1 : permits);
+    }
+
     public int getCurrentJvcCount() {
-        return jvm.getCurrentSize() - Iterables.size(jvm.getAvailableJvcs());
+        return jvm.getCurrentSize() - jvm.getStoppedJvcs() + reserved.get();
     }
 
     public int getAvailableJvcCount() {
-        return Iterables.size(jvm.getAvailableJvcs()) + (getMaxSize() - jvm.getCurrentSize());
+        return jvm.getStoppedJvcs() + (getMaxSize() - jvm.getCurrentSize()) - reserved.get();
+    }
+
+    public int getReservedJvcCount() {
+        return reserved.get();
     }
 
     public int getMaxSize() {
@@ -3,32 +3,64 @@ package brooklyn.policy.waratek;
 import static brooklyn.util.GroovyJavaMethods.truth;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.catalog.Catalog;
 import brooklyn.config.ConfigKey;
+import brooklyn.entity.Effector;
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Entities;
 import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.java.UsesJavaMXBeans;
+import brooklyn.entity.trait.Startable;
+import brooklyn.entity.waratek.cloudvm.JavaVirtualContainer;
+import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
+import brooklyn.entity.waratek.cloudvm.WaratekAttributes;
+import brooklyn.entity.waratek.cloudvm.WaratekInfrastructure;
+import brooklyn.entity.waratek.cloudvm.WaratekUtils;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.SensorEvent;
 import brooklyn.event.SensorEventListener;
 import brooklyn.event.basic.BasicConfigKey;
+import brooklyn.management.SubscriptionHandle;
+import brooklyn.management.Task;
 import brooklyn.policy.PolicySpec;
 import brooklyn.policy.basic.AbstractPolicy;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.task.ScheduledTask;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import com.google.common.reflect.TypeToken;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Policy to reclaim idle resources.
+ * <p>
+ * When the metric stays below the lower bound for the {@link #STABILISATION_WINDOW window},
+ * idle JVCs have their heap shrunk to what they use plus some headroom, JVCs that are still
+ * idle on the next round are paused, and JVMs with no entities are shut down. When the
+ * metric stays above the upper bound for the window, these actions are reversed. Between
+ * the bounds nothing is done, which gives the hysteresis. The metric is evaluated again
+ * once the window has passed, so a final sample beyond a bound is acted on even if no
+ * further events arrive.
+ * <p>
+ * A paused JVC is also resumed on its own when the metric published by the entity running
+ * in it rises above the lower bound, or when {@link #resumeJvc(Entity)} is called.
  */
 @Catalog
 public class ReclaimResourcePolicy extends AbstractPolicy {
@@ -46,6 +78,14 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
         private Entity entityWithMetric;
         private Number metricUpperBound;
         private Number metricLowerBound;
+        private Duration stabilisationWindow;
+        private Double idleCpuThreshold;
+        private Double heapHeadroom;
+        private Long minHeapSize;
+        private Boolean pauseIdle;
+        private Boolean stopEmptyJvms;
+        private Integer minRunningJvms;
+        private Duration minPeriod;
 
         public Builder id(String val) {
             this.id = val; return this;
@@ -70,6 +110,30 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
             metricUpperBound = checkNotNull(max);
             return this;
         }
+        public Builder stabilisationWindow(Duration val) {
+            this.stabilisationWindow = val; return this;
+        }
+        public Builder idleCpuThreshold(Double val) {
+            this.idleCpuThreshold = val; return this;
+        }
+        public Builder heapHeadroom(Double val) {
+            this.heapHeadroom = val; return this;
+        }
+        public Builder minHeapSize(Long val) {
+            this.minHeapSize = val; return this;
+        }
+        public Builder pauseIdle(Boolean val) {
+            this.pauseIdle = val; return this;
+        }
+        public Builder stopEmptyJvms(Boolean val) {
+            this.stopEmptyJvms = val; return this;
+        }
+        public Builder minRunningJvms(Integer val) {
+            this.minRunningJvms = val; return this;
+        }
+        public Builder minPeriod(Duration val) {
+            this.minPeriod = val; return this;
+        }
         public ReclaimResourcePolicy build() {
             return new ReclaimResourcePolicy(toFlags());
         }
@@ -85,6 +149,14 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
                     .putIfNotNull("entityWithMetric", entityWithMetric)
                     .putIfNotNull("metricUpperBound", metricUpperBound)
                     .putIfNotNull("metricLowerBound", metricLowerBound)
+                    .putIfNotNull("stabilisationWindow", stabilisationWindow)
+                    .putIfNotNull("idleCpuThreshold", idleCpuThreshold)
+                    .putIfNotNull("heapHeadroom", heapHeadroom)
+                    .putIfNotNull("minHeapSize", minHeapSize)
+                    .putIfNotNull("pauseIdle", pauseIdle)
+                    .putIfNotNull("stopEmptyJvms", stopEmptyJvms)
+                    .putIfNotNull("minRunningJvms", minRunningJvms)
+                    .putIfNotNull("minPeriod", minPeriod)
                     .build();
         }
     }
@@ -116,9 +188,89 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
             .reconfigurable(true)
             .build();
 
+    @SetFromFlag("stabilisationWindow")
+    public static final ConfigKey<Duration> STABILISATION_WINDOW = BasicConfigKey.builder(Duration.class)
+            .name("reclaimer.stabilisationWindow")
+            .description("Time the metric must stay outside the bounds before acting")
+            .defaultValue(Duration.ONE_MINUTE)
+            .build();
+
+    @SetFromFlag("idleCpuThreshold")
+    public static final ConfigKey<Double> IDLE_CPU_THRESHOLD = BasicConfigKey.builder(Double.class)
+            .name("reclaimer.idleCpuThreshold")
+            .description("CPU usage of a JVC below which it is idle, as a fraction")
+            .defaultValue(0.05d)
+            .build();
+
+    @SetFromFlag("heapHeadroom")
+    public static final ConfigKey<Double> HEAP_HEADROOM = BasicConfigKey.builder(Double.class)
+            .name("reclaimer.heapHeadroom")
+            .description("Fraction of the used heap to leave free when shrinking an idle JVC")
+            .defaultValue(0.25d)
+            .build();
+
+    @SetFromFlag("minHeapSize")
+    public static final ConfigKey<Long> MIN_HEAP_SIZE = BasicConfigKey.builder(Long.class)
+            .name("reclaimer.minHeapSize")
+            .description("Smallest heap to leave allocated to an idle JVC (in bytes)")
+            .defaultValue(64L * 1024L * 1024L)
+            .build();
+
+    @SetFromFlag("pauseIdle")
+    public static final ConfigKey<Boolean> PAUSE_IDLE = BasicConfigKey.builder(Boolean.class)
+            .name("reclaimer.pauseIdle")
+            .description("Pause JVCs that are still idle after their heap was shrunk")
+            .defaultValue(Boolean.TRUE)
+            .build();
+
+    @SetFromFlag("stopEmptyJvms")
+    public static final ConfigKey<Boolean> STOP_EMPTY_JVMS = BasicConfigKey.builder(Boolean.class)
+            .name("reclaimer.stopEmptyJvms")
+            .description("Shut down JVMs with no entities running in their JVCs, when attached to the infrastructure")
+            .defaultValue(Boolean.TRUE)
+            .build();
+
+    @SetFromFlag("minRunningJvms")
+    public static final ConfigKey<Integer> MIN_RUNNING_JVMS = BasicConfigKey.builder(Integer.class)
+            .name("reclaimer.minRunningJvms")
+            .description("Number of JVMs to keep running when shutting down empty JVMs")
+            .defaultValue(1)
+            .build();
+
+    @SetFromFlag("minPeriod")
+    public static final ConfigKey<Duration> MIN_PERIOD = BasicConfigKey.builder(Duration.class)
+            .name("reclaimer.minPeriod")
+            .description("Minimum time between reclaiming or restoring actions")
+            .defaultValue(Duration.THIRTY_SECONDS)
+            .build();
+
+    private enum Region { BELOW, WITHIN, ABOVE }
+
     private Entity poolEntity;
 
-    private volatile ScheduledExecutorService executor;
+    /* Guarded by mutex. */
+
+    private final Object mutex = new Object[0];
+    private Region region = Region.WITHIN;
+    private long regionSince;
+
+    /* Actions taken while reclaiming, to be reversed. */
+
+    private final ConcurrentMap<Entity, Long> shrunkJvcs = Maps.newConcurrentMap();
+    private final Set<Entity> pausedJvcs = Collections.newSetFromMap(Maps.<Entity, Boolean>newConcurrentMap());
+    private final AtomicInteger stoppedJvms = new AtomicInteger(0);
+
+    /* Subscriptions to the metric of the entity running in each paused JVC. */
+
+    private final ConcurrentMap<Entity, PausedWatch> pausedWatches = Maps.newConcurrentMap();
+
+    /* Coalesces metric events, so at most one evaluation is in flight. */
+
+    private final AtomicReference<Number> latestValue = new AtomicReference<Number>();
+    private final AtomicBoolean evaluating = new AtomicBoolean(false);
+    private volatile Task<?> delayed;
+    private volatile long lastAction;
+    private Entity subscribedEntity;
 
     private final SensorEventListener<Number> metricEventHandler = new SensorEventListener<Number>() {
         public void onEvent(SensorEvent<Number> event) {
@@ -135,12 +287,6 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
         super(props);
     }
 
-    @Override
-    public void init() {
-        // TODO Should re-use the execution manager's thread pool, somehow
-        executor = Executors.newSingleThreadScheduledExecutor(newThreadFactory());
-    }
-
     public void setMetricLowerBound(Number val) {
         if (LOG.isInfoEnabled()) LOG.info("{} changing metricLowerBound from {} to {}", new Object[] {this, getMetricLowerBound(), val});
         setConfig(METRIC_LOWER_BOUND, checkNotNull(val));
@@ -183,34 +329,112 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
     @Override
     public void suspend() {
         super.suspend();
-        // TODO unsubscribe from everything? And resubscribe on resume?
-        if (executor != null) executor.shutdownNow();
+        unsubscribeFromMetric();
+        cancelDelayedEvaluation();
+        latestValue.set(null);
+    }
+
+    @Override
+    public void destroy() {
+        cancelDelayedEvaluation();
+        super.destroy();
     }
 
     @Override
     public void resume() {
         super.resume();
-        executor = Executors.newSingleThreadScheduledExecutor(newThreadFactory());
+        subscribeToMetric();
     }
 
     @Override
     public void setEntity(EntityLocal entity) {
         super.setEntity(entity);
         this.poolEntity = entity;
+        subscribeToMetric();
+    }
 
-        if (getMetric() != null) {
-            Entity entityToSubscribeTo = (getEntityWithMetric() != null) ? getEntityWithMetric() : entity;
-            subscribe(entityToSubscribeTo, getMetric(), metricEventHandler);
+    private synchronized void subscribeToMetric() {
+        if (getMetric() != null && subscribedEntity == null) {
+            subscribedEntity = (getEntityWithMetric() != null) ? getEntityWithMetric() : entity;
+            subscribe(subscribedEntity, getMetric(), metricEventHandler);
         }
     }
 
-    private ThreadFactory newThreadFactory() {
-        return new ThreadFactoryBuilder()
-                .setNameFormat("brooklyn-reclaimerpolicy-%d")
-                .build();
+    private synchronized void unsubscribeFromMetric() {
+        if (subscribedEntity != null) {
+            unsubscribe(subscribedEntity);
+            subscribedEntity = null;
+        }
     }
 
     private void onMetricChanged(Number val) {
+        if (isSuspended()) return;
+        latestValue.set(val);
+        scheduleEvaluation();
+    }
+
+    /** Submit an evaluation of the latest value, unless one is already in flight. */
+    private void scheduleEvaluation() {
+        if (!evaluating.compareAndSet(false, true)) return;
+        try {
+            Entities.submit(entity, Tasks.<Void>builder()
+                    .name("Evaluating " + this)
+                    .body(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Number val;
+                                while ((val = latestValue.getAndSet(null)) != null && !isSuspended()) {
+                                    evaluate(val);
+                                }
+                            } finally {
+                                evaluating.set(false);
+                                // A value may have arrived after the last check
+                                if (latestValue.get() != null && !isSuspended()) scheduleEvaluation();
+                            }
+                        }
+                    })
+                    .build());
+        } catch (RuntimeException e) {
+            evaluating.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluate the value again after a delay, unless a newer value arrives first.
+     * <p>
+     * The delay is a {@link ScheduledTask} in the entity's execution context, so it is
+     * tied to this policy's management context and cancelled when the policy is
+     * suspended or destroyed.
+     */
+    private void scheduleEvaluation(final Number val, long delay) {
+        cancelDelayedEvaluation();
+        Callable<Task<?>> job = new Callable<Task<?>>() {
+            @Override
+            public Task<?> call() {
+                return Tasks.<Void>builder()
+                        .name("Re-evaluating " + ReclaimResourcePolicy.this)
+                        .body(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!isSuspended() && latestValue.compareAndSet(null, val)) scheduleEvaluation();
+                            }
+                        })
+                        .build();
+            }
+        };
+        ScheduledTask task = new ScheduledTask(MutableMap.of("delay", Duration.millis(delay), "maxIterations", 1), job);
+        delayed = Entities.submit(entity, task);
+    }
+
+    private void cancelDelayedEvaluation() {
+        Task<?> pending = delayed;
+        if (pending != null) pending.cancel(false);
+        delayed = null;
+    }
+
+    private void evaluate(Number val) {
         if (LOG.isTraceEnabled()) LOG.trace("{} recording pool-metric for {}: {}", new Object[] {this, poolEntity, val});
 
         if (val==null) {
@@ -219,9 +443,219 @@ public class ReclaimResourcePolicy extends AbstractPolicy {
             return;
         }
 
+        Number upper = getMetricUpperBound();
+        Number lower = getMetricLowerBound();
+        if (upper == null || lower == null) {
+            if (LOG.isTraceEnabled()) LOG.trace("{} not reclaiming from {}, bounds not configured", new Object[] {this, poolEntity});
+            return;
+        }
+
         double currentMetricD = val.doubleValue();
-        double metricUpperBoundD = getMetricUpperBound().doubleValue();
-        double metricLowerBoundD = getMetricLowerBound().doubleValue();
+        double metricUpperBoundD = upper.doubleValue();
+        double metricLowerBoundD = lower.doubleValue();
+        Region current = (currentMetricD < metricLowerBoundD) ? Region.BELOW : (currentMetricD > metricUpperBoundD) ? Region.ABOVE : Region.WITHIN;
+
+        // Only act once the metric has stayed beyond the same bound for the whole window
+        synchronized (mutex) {
+            long now = System.currentTimeMillis();
+            long window = getConfig(STABILISATION_WINDOW).toMilliseconds();
+            if (current != region) {
+                region = current;
+                regionSince = now;
+                // Any pending evaluation was for the previous region; check this one again when the window ends
+                cancelDelayedEvaluation();
+                if (current != Region.WITHIN) scheduleEvaluation(val, window);
+                return;
+            }
+            if (current == Region.WITHIN) {
+                return;
+            }
+            if (now - regionSince < window) {
+                scheduleEvaluation(val, regionSince + window - now);
+                return;
+            }
+            long wait = lastAction + getConfig(MIN_PERIOD).toMilliseconds() - now;
+            if (wait > 0) {
+                if (LOG.isTraceEnabled()) LOG.trace("{} deferring action on {} for {}ms", new Object[] {this, poolEntity, wait});
+                scheduleEvaluation(val, wait);
+                return;
+            }
+            regionSince = now;
+        }
+
+        if (LOG.isDebugEnabled()) LOG.debug("{} metric {} {} bounds [{}, {}] on {}", new Object[] {this, currentMetricD, current, metricLowerBoundD, metricUpperBoundD, poolEntity});
+        boolean reclaim = (current == Region.BELOW);
+        try {
+            if (reclaim) {
+                reclaim();
+            } else {
+                restore();
+            }
+        } catch (Exception e) {
+            LOG.warn("Error " + (reclaim ? "reclaiming" : "restoring") + " resources on " + poolEntity, e);
+        } finally {
+            lastAction = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Shrink the heap of idle JVCs, pause those still idle since a previous shrink, and
+     * shut down JVMs that have no entities running on them.
+     */
+    private void reclaim() {
+        for (Entity jvc : getJvcs()) {
+            if (!JavaVirtualContainer.STATUS_RUNNING.equals(jvc.getAttribute(WaratekAttributes.STATUS)) || !isIdle(jvc)) continue;
+            if (shrunkJvcs.containsKey(jvc) && getConfig(PAUSE_IDLE)) {
+                if (invoke(jvc, JavaVirtualContainer.PAUSE, MutableMap.<String, Object>of())) {
+                    pausedJvcs.add(jvc);
+                    watchPausedJvc(jvc);
+                }
+            } else {
+                shrink(jvc);
+            }
+        }
+
+        if (poolEntity instanceof WaratekInfrastructure && getConfig(STOP_EMPTY_JVMS)) {
+            WaratekInfrastructure infrastructure = (WaratekInfrastructure) poolEntity;
+            int running = infrastructure.getJvmList().size();
+            for (Entity jvm : infrastructure.getJvmList()) {
+                if (running <= getConfig(MIN_RUNNING_JVMS)) break;
+                if (!isEmpty((JavaVirtualMachine) jvm)) continue;
+                LOG.info("{} shutting down empty JVM {}", this, jvm);
+                if (invoke(jvm, Startable.STOP, MutableMap.<String, Object>of())) {
+                    infrastructure.getVirtualMachineCluster().removeMember(jvm);
+                    Entities.unmanage(jvm);
+                    stoppedJvms.incrementAndGet();
+                    running--;
+                }
+            }
+        }
+    }
+
+    /** Replace shut down JVMs, then resume paused JVCs and give back their heap. */
+    private void restore() {
+        int jvms = stoppedJvms.getAndSet(0);
+        if (jvms > 0 && poolEntity instanceof WaratekInfrastructure) {
+            LOG.info("{} replacing {} JVMs", this, jvms);
+            ((WaratekInfrastructure) poolEntity).getVirtualMachineCluster().resizeByDelta(jvms);
+        }
+        for (Entity jvc : ImmutableList.copyOf(pausedJvcs)) {
+            resumeJvc(jvc);
+        }
+        for (Entity jvc : ImmutableList.copyOf(shrunkJvcs.keySet())) {
+            Long size = shrunkJvcs.remove(jvc);
+            if (Entities.isManaged(jvc)) invoke(jvc, JavaVirtualContainer.ALLOCATE_HEAP, MutableMap.<String, Object>of("size", size));
+        }
+    }
+
+    /**
+     * Resume a JVC paused by this policy and give back its heap, without waiting for the
+     * metric to go above the upper bound.
+     *
+     * @return {@code false} if the JVC was not paused by this policy
+     */
+    public boolean resumeJvc(Entity jvc) {
+        if (!pausedJvcs.remove(jvc)) return false;
+        unwatchPausedJvc(jvc);
+        LOG.info("{} resuming JVC {}", this, jvc);
+        if (Entities.isManaged(jvc)) {
+            invoke(jvc, JavaVirtualContainer.RESUME, MutableMap.<String, Object>of());
+            Long size = shrunkJvcs.remove(jvc);
+            if (size != null) invoke(jvc, JavaVirtualContainer.ALLOCATE_HEAP, MutableMap.<String, Object>of("size", size));
+        } else {
+            shrunkJvcs.remove(jvc);
+        }
+        return true;
+    }
+
+    /** Resume the JVC when the entity running in it publishes a metric above the lower bound. */
+    private void watchPausedJvc(final Entity jvc) {
+        Entity running = jvc.getAttribute(JavaVirtualContainer.ENTITY);
+        if (running == null || getMetric() == null || running.equals(subscribedEntity)) return;
+        SubscriptionHandle handle = subscribe(running, getMetric(), new SensorEventListener<Number>() {
+            @Override
+            public void onEvent(SensorEvent<Number> event) {
+                Number lower = getMetricLowerBound();
+                Number value = event.getValue();
+                if (isSuspended() || value == null || lower == null || value.doubleValue() <= lower.doubleValue()) return;
+                if (!pausedJvcs.contains(jvc)) return;
+                Entities.submit(entity, Tasks.<Void>builder()
+                        .name("Resuming " + jvc)
+                        .body(new Runnable() {
+                            @Override
+                            public void run() {
+                                resumeJvc(jvc);
+                            }
+                        })
+                        .build());
+            }
+        });
+        PausedWatch previous = pausedWatches.put(jvc, new PausedWatch(running, handle));
+        if (previous != null) unsubscribe(previous.producer, previous.handle);
+    }
+
+    private void unwatchPausedJvc(Entity jvc) {
+        PausedWatch watch = pausedWatches.remove(jvc);
+        if (watch != null) unsubscribe(watch.producer, watch.handle);
+    }
+
+    private static class PausedWatch {
+        private final Entity producer;
+        private final SubscriptionHandle handle;
+
+        private PausedWatch(Entity producer, SubscriptionHandle handle) {
+            this.producer = producer;
+            this.handle = handle;
+        }
+    }
+
+    private void shrink(Entity jvc) {
+        Long used = jvc.getAttribute(UsesJavaMXBeans.USED_HEAP_MEMORY);
+        if (used == null) return;
+        Long allocated = jvc.getAttribute(JavaVirtualContainer.MAX_HEAP_SIZE);
+        long current = (allocated == null) ? 0L : allocated;
+        long target = Math.max(getConfig(MIN_HEAP_SIZE), (long) (used * (1d + getConfig(HEAP_HEADROOM))));
+        // Zero means the heap is unlimited
+        if (current > 0 && target >= current) return;
+        if (invoke(jvc, JavaVirtualContainer.ALLOCATE_HEAP, MutableMap.<String, Object>of("size", target))) {
+            shrunkJvcs.putIfAbsent(jvc, current);
+        }
+    }
+
+    private boolean isIdle(Entity jvc) {
+        Double cpu = WaratekUtils.cpuUsageFraction(jvc.getAttribute(WaratekAttributes.CPU_USAGE));
+        return cpu != null && cpu < getConfig(IDLE_CPU_THRESHOLD);
+    }
+
+    private boolean isEmpty(JavaVirtualMachine jvm) {
+        for (Entity jvc : jvm.getJvcList()) {
+            if (jvc.getAttribute(JavaVirtualContainer.ENTITY) != null) return false;
+        }
+        return true;
+    }
+
+    /** The JVCs in scope, depending on whether the policy is on a JVC, a JVM or the infrastructure. */
+    private List<Entity> getJvcs() {
+        if (poolEntity instanceof JavaVirtualContainer) {
+            return ImmutableList.of(poolEntity);
+        } else if (poolEntity instanceof JavaVirtualMachine) {
+            return ((JavaVirtualMachine) poolEntity).getJvcList();
+        } else if (poolEntity instanceof WaratekInfrastructure) {
+            return ((WaratekInfrastructure) poolEntity).getJvcList();
+        } else {
+            return ImmutableList.of();
+        }
+    }
+
+    private boolean invoke(Entity target, Effector<?> effector, Map<String, Object> parameters) {
+        try {
+            Entities.invokeEffector(entity, target, effector, parameters).get();
+            return true;
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("{} failed to invoke {} on {}: {}", new Object[] {this, effector.getName(), target, e.getMessage()});
+            return false;
+        }
     }
 
     @Override
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.os.Os;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for the {@link ArtifactCache} checksum and reuse of cached artifacts.
+ */
+public class ArtifactCacheTest {
+
+    private static final String CONTENT = "waratek release";
+    private static final String CHECKSUM = Hashing.sha256().hashString(CONTENT, Charsets.UTF_8).toString();
+
+    private File tempDir;
+    private File source;
+    private String cacheDir;
+    private List<String> urls;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDir();
+        source = new File(tempDir, "release.tar.gz");
+        Files.write(CONTENT, source, Charsets.UTF_8);
+        cacheDir = new File(tempDir, "cache").getAbsolutePath();
+        urls = ImmutableList.of(source.getAbsolutePath());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (tempDir != null) Os.deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testRecordsChecksumOfDownload() throws Exception {
+        ArtifactCache.Artifact artifact = ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, null);
+
+        assertEquals(artifact.getChecksum(), CHECKSUM);
+        assertEquals(Files.toString(artifact.getFile(), Charsets.UTF_8), CONTENT);
+        assertEquals(Files.toString(new File(artifact.getFile().getParentFile(), "release.tar.gz.sha256"), Charsets.UTF_8).trim(), CHECKSUM);
+    }
+
+    @Test
+    public void testReusesCachedArtifact() throws Exception {
+        ArtifactCache.Artifact first = ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, CHECKSUM);
+        assertTrue(source.delete());
+
+        ArtifactCache.Artifact second = ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, CHECKSUM);
+
+        assertEquals(second.getFile(), first.getFile());
+        assertEquals(second.getChecksum(), CHECKSUM);
+    }
+
+    @Test
+    public void testCachesVersionsSeparately() throws Exception {
+        ArtifactCache.Artifact first = ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, null);
+        Files.write(CONTENT + " updated", source, Charsets.UTF_8);
+
+        ArtifactCache.Artifact second = ArtifactCache.get(cacheDir, "2.0", "release.tar.gz", urls, null);
+
+        assertFalse(second.getFile().equals(first.getFile()));
+        assertFalse(second.getChecksum().equals(first.getChecksum()));
+    }
+
+    @Test
+    public void testRejectsChecksumMismatch() throws Exception {
+        try {
+            ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, "0000");
+            fail("Expected checksum mismatch");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains(CHECKSUM), e.getMessage());
+        }
+        File dir = new File(cacheDir, "1.0");
+        assertFalse(new File(dir, "release.tar.gz").exists());
+        assertFalse(new File(dir, "release.tar.gz.part").exists());
+    }
+
+    @Test
+    public void testDownloadsAgainWhenCachedChecksumDiffers() throws Exception {
+        ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, null);
+        String updated = CONTENT + " updated";
+        Files.write(updated, source, Charsets.UTF_8);
+        String expected = Hashing.sha256().hashString(updated, Charsets.UTF_8).toString();
+
+        ArtifactCache.Artifact artifact = ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", urls, expected);
+
+        assertEquals(artifact.getChecksum(), expected);
+        assertEquals(Files.toString(artifact.getFile(), Charsets.UTF_8), updated);
+    }
+
+    @Test
+    public void testFailsWhenNoUrlWorks() throws Exception {
+        try {
+            ArtifactCache.get(cacheDir, "1.0", "release.tar.gz", ImmutableList.of(new File(tempDir, "missing").getAbsolutePath()), null);
+            fail("Expected download failure");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+}
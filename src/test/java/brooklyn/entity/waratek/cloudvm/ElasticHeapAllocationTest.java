@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Unit tests for sharing the elastic heap of an application group.
+ */
+public class ElasticHeapAllocationTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    public void testSplitsEvenlyWhenIdle() {
+        Map<String, Long> sizes = WaratekApplicationGroupImpl.allocateHeap(ImmutableMap.of("a", 0L, "b", 0L), 1024 * MB, 0.5d);
+
+        assertEquals(sizes, ImmutableMap.of("a", 512 * MB, "b", 512 * MB));
+    }
+
+    @Test
+    public void testSharesInProportionToUsedHeap() {
+        Map<String, Long> sizes = WaratekApplicationGroupImpl.allocateHeap(ImmutableMap.of("a", 300 * MB, "b", 100 * MB), 2000 * MB, 0.5d);
+
+        // 500MB each from the reserved half, then 750MB and 250MB of the rest
+        assertEquals(sizes, ImmutableMap.of("a", 1250 * MB, "b", 750 * MB));
+    }
+
+    @Test
+    public void testNoShareBelowUsedHeapPlusHeadroom() {
+        // The proportional share of "a" would be about 808MB, less than it uses
+        Map<String, Long> sizes = WaratekApplicationGroupImpl.allocateHeap(
+                ImmutableMap.of("a", 1000 * MB, "b", 100 * MB, "c", 0L), 1300 * MB, 0.5d);
+
+        assertEquals(sizes.get("a"), Long.valueOf(1100 * MB));
+        assertTrue(sizes.get("b") >= 110 * MB, "b=" + sizes.get("b"));
+        assertTrue(sizes.get("c") > 0L, "c=" + sizes.get("c"));
+        assertTrue(sizes.get("a") + sizes.get("b") + sizes.get("c") <= 1300 * MB, "sizes=" + sizes);
+    }
+
+    @Test
+    public void testRescalesRestAfterFlooring() {
+        Map<String, Long> sizes = WaratekApplicationGroupImpl.allocateHeap(
+                ImmutableMap.of("a", 0L, "b", 0L, "c", 500 * MB), 900 * MB, 1d);
+
+        // An even split gives 300MB each, so "c" is held at 550MB and "a" and "b" share the rest
+        assertEquals(sizes, ImmutableMap.of("a", 175 * MB, "b", 175 * MB, "c", 550 * MB));
+    }
+
+    @Test
+    public void testFloorsWhenBudgetTooSmall() {
+        Map<String, Long> sizes = WaratekApplicationGroupImpl.allocateHeap(ImmutableMap.of("a", 500 * MB, "b", 500 * MB), 800 * MB, 0.5d);
+
+        assertEquals(sizes, ImmutableMap.of("a", 550 * MB, "b", 550 * MB));
+    }
+
+    @Test
+    public void testClampsReservedFraction() {
+        Map<String, Long> sizes = WaratekApplicationGroupImpl.allocateHeap(ImmutableMap.of("a", 300 * MB, "b", 100 * MB), 2000 * MB, 5d);
+
+        assertEquals(sizes, ImmutableMap.of("a", 1000 * MB, "b", 1000 * MB));
+    }
+
+}
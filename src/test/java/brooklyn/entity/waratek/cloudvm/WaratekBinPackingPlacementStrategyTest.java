@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.waratek.cloudvm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import brooklyn.entity.waratek.cloudvm.WaratekBinPackingPlacementStrategy.Usage;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for the bin-packing score.
+ */
+public class WaratekBinPackingPlacementStrategyTest {
+
+    private static final long MB = 1024L * 1024L;
+    private static final double CPU_LIMIT = WaratekBinPackingPlacementStrategy.DEFAULT_CPU_LIMIT;
+
+    @Test
+    public void testChoosesFullestJvmThatFits() {
+        Map<String, Usage> usage = Maps.newLinkedHashMap();
+        usage.put("empty", new Usage("empty", 256 * MB, 1024 * MB, 4, 0, 0L, 0d));
+        usage.put("half", new Usage("half", 256 * MB, 1024 * MB, 4, 2, 512 * MB, 0d));
+
+        assertEquals(WaratekBinPackingPlacementStrategy.choose(usage, CPU_LIMIT), "half");
+    }
+
+    @Test
+    public void testSkipsJvmWithoutHeapForContainer() {
+        Map<String, Usage> usage = Maps.newLinkedHashMap();
+        usage.put("empty", new Usage("empty", 256 * MB, 1024 * MB, 4, 0, 0L, 0d));
+        usage.put("full", new Usage("full", 256 * MB, 1024 * MB, 8, 1, 900 * MB, 0d));
+
+        assertEquals(WaratekBinPackingPlacementStrategy.choose(usage, CPU_LIMIT), "empty");
+    }
+
+    @Test
+    public void testPrefersJvmBelowCpuLimit() {
+        Map<String, Usage> usage = Maps.newLinkedHashMap();
+        usage.put("hot", new Usage("hot", 256 * MB, 1024 * MB, 4, 3, 768 * MB, 0.95d));
+        usage.put("cool", new Usage("cool", 256 * MB, 1024 * MB, 4, 0, 0L, 0.1d));
+
+        assertEquals(WaratekBinPackingPlacementStrategy.choose(usage, CPU_LIMIT), "cool");
+    }
+
+    @Test
+    public void testUsesHotJvmWhenNothingElseFits() {
+        Map<String, Usage> usage = Maps.newLinkedHashMap();
+        usage.put("hot", new Usage("hot", 256 * MB, 1024 * MB, 4, 1, 256 * MB, 0.95d));
+        usage.put("full", new Usage("full", 256 * MB, 1024 * MB, 4, 4, 1024 * MB, 0.1d));
+
+        assertEquals(WaratekBinPackingPlacementStrategy.choose(usage, CPU_LIMIT), "hot");
+    }
+
+    @Test
+    public void testNoChoiceWhenNothingFits() {
+        Map<String, Usage> usage = Maps.newLinkedHashMap();
+        usage.put("slots", new Usage("slots", 0L, 0L, 2, 2, 0L, 0d));
+        usage.put("heap", new Usage("heap", 512 * MB, 1024 * MB, 4, 1, 768 * MB, 0d));
+
+        assertNull(WaratekBinPackingPlacementStrategy.choose(usage, CPU_LIMIT));
+    }
+
+    @Test
+    public void testPlacementUpdatesUsage() {
+        Usage usage = new Usage("jvm", 256 * MB, 1024 * MB, 4, 0, 0L, 0d);
+        assertEquals(usage.capacity(), 4);
+        assertEquals(usage.shareAfterPlacement(), 0.25d, 0.0001d);
+
+        usage.place();
+        usage.place();
+        usage.place();
+        assertEquals(usage.capacity(), 1);
+        assertTrue(usage.fits());
+
+        usage.place();
+        assertEquals(usage.capacity(), 0);
+        assertFalse(usage.fits());
+    }
+
+    @Test
+    public void testHeapLimitsCapacityBeforeSlots() {
+        Usage usage = new Usage("jvm", 384 * MB, 1024 * MB, 10, 0, 0L, 0d);
+        assertEquals(usage.capacity(), 2);
+        assertEquals(usage.shareAfterPlacement(), 0.375d, 0.0001d);
+    }
+
+    @Test
+    public void testUnlimitedHeapUsesSlotsOnly() {
+        Usage usage = new Usage("jvm", 0L, 1024 * MB, 4, 1, 4096 * MB, 0d);
+        assertTrue(usage.fits());
+        assertEquals(usage.capacity(), 3);
+        assertEquals(usage.shareAfterPlacement(), 0.5d, 0.0001d);
+    }
+
+    @Test
+    public void testCpuUsageIsPercentage() {
+        assertEquals(WaratekUtils.cpuUsageFraction(0.5d), 0.005d, 0.00001d);
+        assertEquals(WaratekUtils.cpuUsageFraction(1d), 0.01d, 0.00001d);
+        assertEquals(WaratekUtils.cpuUsageFraction(80d), 0.8d, 0.00001d);
+        assertNull(WaratekUtils.cpuUsageFraction(null));
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.affinity;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.BasicEntity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SimulatedLocation;
+import brooklyn.test.entity.TestEntity;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Unit tests for {@link AffinityRulePlacementStrategy} and the entity type rules.
+ */
+public class AffinityRulePlacementStrategyTest extends BrooklynAppUnitTestSupport {
+
+    private Location loc1;
+    private Location loc2;
+    private List<Location> locations;
+
+    @BeforeMethod(alwaysRun = true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        loc1 = mgmt.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class));
+        loc2 = mgmt.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class));
+        locations = ImmutableList.of(loc1, loc2);
+    }
+
+    @Test
+    public void testAntiAffinityRejectsOccupiedLocation() {
+        addEntity(loc1);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class))), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 2), ImmutableList.of(loc2, loc2));
+    }
+
+    @Test
+    public void testAffinityRequiresOccupiedLocation() {
+        addEntity(loc2);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAffinityRule(ImmutableMap.of("entityType", TestEntity.class))), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 2), ImmutableList.of(loc2, loc2));
+    }
+
+    @Test
+    public void testEmptyLocationsAllowedWhenConfigured() {
+        addEntity(loc2);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class))), true);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc1));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testFailsWhenNoLocationSatisfiesRules() {
+        addEntity(loc1);
+        addEntity(loc2);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class))), false);
+
+        strategy.locationsForAdditions(null, locations, 1);
+    }
+
+    @Test
+    public void testSoftRulePrefersLocationWithoutRejectingOthers() {
+        addEntity(loc2);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAffinityRule(ImmutableMap.<String, Object>of("entityType", TestEntity.class, "required", false))), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 2), ImmutableList.of(loc2, loc2));
+    }
+
+    @Test
+    public void testSoftRuleBalancesWhenNoLocationScores() {
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAffinityRule(ImmutableMap.<String, Object>of("entityType", TestEntity.class, "required", false))), false);
+
+        List<Location> result = strategy.locationsForAdditions(null, locations, 2);
+        assertEquals(ImmutableSet.copyOf(result), ImmutableSet.of(loc1, loc2));
+    }
+
+    @Test
+    public void testSoftRuleScoresFractionOfMatchingEntities() {
+        addEntity(loc1);
+        addEntity(BasicEntity.class, loc1);
+        addEntity(loc2);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAffinityRule(ImmutableMap.<String, Object>of("entityType", TestEntity.class, "required", false))), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+    }
+
+    @Test
+    public void testSoftAntiAffinityPrefersFewerMatchingEntities() {
+        addEntity(loc1);
+        addEntity(loc2);
+        addEntity(BasicEntity.class, loc2);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAntiAffinityRule(ImmutableMap.<String, Object>of("entityType", TestEntity.class, "required", false))), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+    }
+
+    @Test
+    public void testHighestWeightedScoreWins() {
+        addEntity(loc1);
+        AffinityRule affinity = new EntityTypeAffinityRule(ImmutableMap.<String, Object>of("entityType", TestEntity.class, "required", false));
+        AffinityRule preferred = new PredicateAffinityRule(ImmutableMap.<String, Object>of("predicate", Predicates.equalTo(loc2), "required", false, "weight", 2d));
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt, ImmutableList.of(affinity, preferred), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+    }
+
+    @Test
+    public void testRequiredRuleFiltersBeforeScoring() {
+        addEntity(loc1);
+        AffinityRule antiAffinity = new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class));
+        AffinityRule preferred = new PredicateAffinityRule(ImmutableMap.<String, Object>of("predicate", Predicates.equalTo(loc1), "required", false, "weight", 5d));
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt, ImmutableList.of(antiAffinity, preferred), false);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+    }
+
+    @Test
+    public void testCachedVerdictInvalidatedWhenEntityUnmanaged() {
+        Entity entity = addEntity(loc1);
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class))), false);
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+
+        Entities.unmanage(entity);
+        LocationEntityIndex.forManagementContext(mgmt).update(entity);
+
+        assertEquals(ImmutableSet.copyOf(strategy.locationsForAdditions(null, locations, 2)), ImmutableSet.of(loc1, loc2));
+    }
+
+    @Test
+    public void testCachedVerdictInvalidatedWhenEntityAdded() {
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt,
+                ImmutableList.of(new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class))), false);
+        assertEquals(ImmutableSet.copyOf(strategy.locationsForAdditions(null, locations, 2)), ImmutableSet.of(loc1, loc2));
+
+        addEntity(loc1);
+
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+    }
+
+    @Test
+    public void testCachedVerdictInvalidatedWhenRuleReconfigured() {
+        addEntity(loc1);
+        EntityTypeAntiAffinityRule rule = new EntityTypeAntiAffinityRule(ImmutableMap.of("entityType", TestEntity.class));
+        AffinityRulePlacementStrategy strategy = new AffinityRulePlacementStrategy(mgmt, ImmutableList.of(rule), false);
+        assertEquals(strategy.locationsForAdditions(null, locations, 1), ImmutableList.of(loc2));
+
+        rule.setConfig(EntityTypeAntiAffinityRule.ENTITY_TYPE, BasicEntity.class);
+
+        assertEquals(ImmutableSet.copyOf(strategy.locationsForAdditions(null, locations, 2)), ImmutableSet.of(loc1, loc2));
+    }
+
+    protected Entity addEntity(Location location) {
+        return addEntity(TestEntity.class, location);
+    }
+
+    protected Entity addEntity(Class<? extends Entity> type, Location location) {
+        Entity entity = app.createAndManageChild(EntitySpec.create(type));
+        ((EntityInternal) entity).addLocations(ImmutableList.of(location));
+        LocationEntityIndex.forManagementContext(mgmt).update(entity);
+        return entity;
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.affinity;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.BasicEntity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SimulatedLocation;
+import brooklyn.test.entity.TestEntity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Unit tests for {@link LocationEntityIndex}.
+ */
+public class LocationEntityIndexTest extends BrooklynAppUnitTestSupport {
+
+    private Location machine;
+    private Location container;
+    private Location other;
+    private LocationEntityIndex index;
+
+    @BeforeMethod(alwaysRun = true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        machine = mgmt.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class));
+        container = mgmt.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class).parent(machine));
+        other = mgmt.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class));
+        index = LocationEntityIndex.forManagementContext(mgmt);
+    }
+
+    @Test
+    public void testIndexIsSharedPerManagementContext() {
+        assertTrue(LocationEntityIndex.forManagementContext(mgmt) == index);
+    }
+
+    @Test
+    public void testIndexesEntityAtLocationAndParents() {
+        Entity entity = addEntity(TestEntity.class, container);
+
+        assertEquals(ImmutableSet.copyOf(index.getEntities(container)), ImmutableSet.of(entity));
+        assertEquals(ImmutableSet.copyOf(index.getEntities(machine)), ImmutableSet.of(entity));
+        assertTrue(index.isEmpty(other));
+        assertTrue(index.hasEntity(machine, entity.getId()));
+        assertTrue(index.hasEntityOfType(machine, TestEntity.class));
+        assertFalse(index.hasEntityOfType(machine, BasicEntity.class));
+    }
+
+    @Test
+    public void testReindexesWhenLocationRemoved() {
+        Entity entity = addEntity(TestEntity.class, container);
+
+        ((EntityInternal) entity).removeLocations(ImmutableList.of(container));
+        index.update(entity);
+
+        assertTrue(index.isEmpty(container));
+        assertTrue(index.isEmpty(machine));
+    }
+
+    @Test
+    public void testGenerationChangesWhenEntityAdded() {
+        long machineGeneration = index.getGeneration(machine);
+        long containerGeneration = index.getGeneration(container);
+        long otherGeneration = index.getGeneration(other);
+
+        addEntity(TestEntity.class, container);
+
+        assertFalse(index.getGeneration(machine) == machineGeneration);
+        assertFalse(index.getGeneration(container) == containerGeneration);
+        assertEquals(index.getGeneration(other), otherGeneration);
+    }
+
+    @Test
+    public void testGenerationUnchangedWhenLocationsUnchanged() {
+        Entity entity = addEntity(TestEntity.class, container);
+        long generation = index.getGeneration(container);
+
+        index.update(entity);
+
+        assertEquals(index.getGeneration(container), generation);
+    }
+
+    @Test
+    public void testGenerationChangesWhenLocationRemoved() {
+        Entity entity = addEntity(TestEntity.class, container);
+        long generation = index.getGeneration(machine);
+
+        ((EntityInternal) entity).removeLocations(ImmutableList.of(container));
+        index.update(entity);
+
+        assertFalse(index.getGeneration(machine) == generation);
+    }
+
+    @Test
+    public void testUnmanagedEntityRemoved() {
+        Entity entity = addEntity(TestEntity.class, container);
+        long generation = index.getGeneration(container);
+
+        Entities.unmanage(entity);
+        index.update(entity);
+
+        assertTrue(index.isEmpty(container));
+        assertTrue(index.isEmpty(machine));
+        assertFalse(index.getGeneration(container) == generation);
+    }
+
+    @Test
+    public void testGenerationNeverReturnsToEarlierValue() {
+        long initial = index.getGeneration(container);
+        Entity entity = addEntity(TestEntity.class, container);
+        long added = index.getGeneration(container);
+
+        Entities.unmanage(entity);
+        index.update(entity);
+
+        assertFalse(index.getGeneration(container) == initial);
+        assertFalse(index.getGeneration(container) == added);
+    }
+
+    protected Entity addEntity(Class<? extends Entity> type, Location location) {
+        Entity entity = app.createAndManageChild(EntitySpec.create(type));
+        ((EntityInternal) entity).addLocations(ImmutableList.of(location));
+        index.update(entity);
+        return entity;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.waratek;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.location.waratek.WaratekContainerLocation.HostFirewall;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Unit tests for the queued iptables changes of a {@link HostFirewall}.
+ */
+public class HostFirewallTest {
+
+    private HostFirewall firewall;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() {
+        firewall = new HostFirewall();
+        firewall.load(ImmutableSet.<Integer>of(), ImmutableSet.<Integer>of());
+    }
+
+    @Test
+    public void testParsesAcceptRules() {
+        String rules = "-P INPUT ACCEPT\n"
+                + "-A INPUT -p tcp -m tcp --dport 8080 -j ACCEPT\n"
+                + "-A INPUT -p tcp --dport 22 -j ACCEPT\n"
+                + "-A INPUT -p udp -m udp --dport 53 -j ACCEPT\n"
+                + "-A INPUT -p tcp -m tcp --dport 9999 -j DROP\n"
+                + "-A INPUT -p tcp -m tcp --dport 8081 -m comment --comment brooklyn-waratek -j ACCEPT\n"
+                + "-A INPUT -p tcp -m tcp --dport 8082 -m comment --comment \"brooklyn-waratek\" -j ACCEPT\n";
+
+        assertEquals(HostFirewall.parseOpenPorts(rules), ImmutableSet.of(8080, 22, 8081, 8082));
+        assertEquals(HostFirewall.parseInsertedPorts(rules), ImmutableSet.of(8081, 8082));
+    }
+
+    @Test
+    public void testQueuesAndAppliesChanges() {
+        firewall.queueOpen(8080, "jvc1");
+        firewall.queueOpen(8081, "jvc2");
+        assertTrue(firewall.hasPending());
+        assertEquals(firewall.getRestoreRules(), "*filter\\n"
+                + "-I INPUT -p tcp --dport 8080 -m comment --comment brooklyn-waratek -j ACCEPT\\n"
+                + "-I INPUT -p tcp --dport 8081 -m comment --comment brooklyn-waratek -j ACCEPT\\n"
+                + "COMMIT\\n");
+
+        firewall.applied();
+
+        assertFalse(firewall.hasPending());
+        assertEquals(firewall.getOpen(), ImmutableSet.of(8080, 8081));
+    }
+
+    @Test
+    public void testOpenThenCloseCancels() {
+        firewall.queueOpen(8080, "jvc1");
+        firewall.queueClose(8080, "jvc1");
+
+        assertFalse(firewall.hasPending());
+    }
+
+    @Test
+    public void testCloseThenOpenCancels() {
+        firewall.load(ImmutableSet.of(8080), ImmutableSet.of(8080));
+        firewall.queueClose(8080, "jvc1");
+        assertEquals(firewall.getPending(), ImmutableSet.of(8080));
+
+        firewall.queueOpen(8080, "jvc2");
+
+        assertFalse(firewall.hasPending());
+        assertEquals(firewall.getOpen(), ImmutableSet.of(8080));
+    }
+
+    @Test
+    public void testAlreadyOpenPortNotQueued() {
+        firewall.load(ImmutableSet.of(8080), ImmutableSet.<Integer>of());
+        firewall.queueOpen(8080, "jvc1");
+
+        assertFalse(firewall.hasPending());
+    }
+
+    @Test
+    public void testClosesPortsLoadedFromHost() {
+        // After a restart the model is loaded from the host, so earlier ports can be closed
+        HostFirewall reloaded = new HostFirewall();
+        assertFalse(reloaded.isLoaded());
+        reloaded.load(ImmutableSet.of(8080, 8081), ImmutableSet.of(8080, 8081));
+        assertTrue(reloaded.isLoaded());
+
+        reloaded.queueClose(8080, "jvc1");
+        assertEquals(reloaded.getRestoreRules(), "*filter\\n"
+                + "-D INPUT -p tcp --dport 8080 -m comment --comment brooklyn-waratek -j ACCEPT\\n"
+                + "COMMIT\\n");
+        reloaded.applied();
+
+        assertEquals(reloaded.getOpen(), ImmutableSet.of(8081));
+    }
+
+    @Test
+    public void testExistingRulesNotClosed() {
+        firewall.load(ImmutableSet.of(22, 8080), ImmutableSet.<Integer>of());
+
+        firewall.queueClose(8080, "jvc1");
+
+        assertFalse(firewall.hasPending());
+        assertEquals(firewall.getOpen(), ImmutableSet.of(22, 8080));
+        assertEquals(firewall.getInserted(), ImmutableSet.of());
+    }
+
+    @Test
+    public void testUnknownPortNotClosed() {
+        firewall.queueClose(8080, "jvc1");
+
+        assertFalse(firewall.hasPending());
+    }
+
+    @Test
+    public void testLoadDropsChangesAlreadyMade() {
+        HostFirewall reloaded = new HostFirewall();
+        reloaded.queueOpen(8080, "jvc1");
+        reloaded.queueOpen(8081, "jvc1");
+
+        reloaded.load(ImmutableSet.of(8080), ImmutableSet.of(8080));
+
+        assertEquals(reloaded.getPending(), ImmutableSet.of(8081));
+    }
+
+    @Test
+    public void testFailureDroppedAndOnlyAffectedOwnersFail() {
+        firewall.load(ImmutableSet.of(9000), ImmutableSet.of(9000));
+        firewall.queueOpen(8080, "jvc1");
+        firewall.queueOpen(8081, "jvc2");
+        firewall.queueClose(9000, "jvc3");
+
+        // Only 8081 was opened before the update failed
+        firewall.failed(ImmutableSet.of(8081, 9000), ImmutableSet.of(8081, 9000));
+
+        assertFalse(firewall.hasPending());
+        assertEquals(firewall.getOpen(), ImmutableSet.of(8081, 9000));
+        assertEquals(firewall.takeFailures("jvc1"), ImmutableSet.of(8080));
+        assertEquals(firewall.takeFailures("jvc2"), ImmutableSet.of());
+        assertEquals(firewall.takeFailures("jvc3"), ImmutableSet.of(9000));
+        assertEquals(firewall.takeFailures("jvc1"), ImmutableSet.of());
+    }
+
+    @Test
+    public void testFailureWithUnknownStateFailsAllAndReloads() {
+        firewall.queueOpen(8080, "jvc1");
+        firewall.queueOpen(8081, "jvc2");
+
+        firewall.failed(null, null);
+
+        assertFalse(firewall.hasPending());
+        assertFalse(firewall.isLoaded());
+        assertEquals(firewall.takeFailures("jvc1"), ImmutableSet.of(8080));
+        assertEquals(firewall.takeFailures("jvc2"), ImmutableSet.of(8081));
+    }
+
+}
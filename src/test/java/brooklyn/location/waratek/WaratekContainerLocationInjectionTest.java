@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.waratek;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import brooklyn.entity.waratek.cloudvm.JavaVirtualMachine;
+import brooklyn.location.waratek.WaratekContainerLocation.Injection;
+import brooklyn.location.waratek.WaratekContainerLocation.InjectionInputs;
+import brooklyn.util.internal.ssh.SshTool;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Unit tests for rebuilding the cached {@link Injection} of a container location when its inputs change.
+ */
+public class WaratekContainerLocationInjectionTest {
+
+    private static final List<String> JAVA_OPTS = ImmutableList.of("JAVA_OPTS");
+
+    private InjectionInputs inputs(String entityId, String jvcName, String javaHome, List<String> javaOptsVariables) {
+        return new InjectionInputs(entityId, jvcName, "jvm-1", javaHome, "/opt/waratek/jvm-1", false, null, javaOptsVariables);
+    }
+
+    @Test
+    public void testBuildsFromInputs() {
+        Injection injection = Injection.update(null, inputs("entity", "jvc-1", "/opt/java", JAVA_OPTS));
+
+        assertEquals(injection.commands, ImmutableList.of("export PATH=/opt/java/bin:$PATH"));
+        assertEquals(injection.waratekOpts, "--prefix=/opt/waratek/jvm-1 --async --jvm=jvm-1 --jvc=jvc-1");
+        assertEquals(injection.environment.get(JavaVirtualMachine.JAVA_HOME_VAR), "/opt/java");
+        assertTrue(injection.props.isEmpty());
+        assertEquals(injection.javaOptsVariables, JAVA_OPTS);
+    }
+
+    @Test
+    public void testReusedWhileInputsUnchanged() {
+        Injection injection = Injection.update(null, inputs("entity", "jvc-1", "/opt/java", JAVA_OPTS));
+
+        assertSame(Injection.update(injection, inputs("entity", "jvc-1", "/opt/java", JAVA_OPTS)), injection);
+    }
+
+    @Test
+    public void testRebuiltWhenRunningEntityChanges() {
+        Injection injection = Injection.update(null, inputs("entity", "jvc-1", "/opt/java", JAVA_OPTS));
+
+        Injection updated = Injection.update(injection, inputs("other", "jvc-1", "/opt/java", ImmutableList.of("CATALINA_OPTS")));
+
+        assertFalse(updated == injection);
+        assertEquals(updated.javaOptsVariables, ImmutableList.of("CATALINA_OPTS"));
+        assertFalse(Injection.update(updated, inputs(null, "jvc-1", "/opt/java", JAVA_OPTS)) == updated);
+    }
+
+    @Test
+    public void testRebuiltWhenJvcOrJvmChanges() {
+        Injection injection = Injection.update(null, inputs("entity", "jvc-1", "/opt/java", JAVA_OPTS));
+
+        Injection renamed = Injection.update(injection, inputs("entity", "jvc-2", "/opt/java", JAVA_OPTS));
+        assertFalse(renamed == injection);
+        assertTrue(renamed.waratekOpts.contains("--jvc=jvc-2"), renamed.waratekOpts);
+
+        Injection moved = Injection.update(renamed, inputs("entity", "jvc-2", "/usr/java", JAVA_OPTS));
+        assertFalse(moved == renamed);
+        assertEquals(moved.commands, ImmutableList.of("export PATH=/usr/java/bin:$PATH"));
+    }
+
+    @Test
+    public void testDebugAndUserInputs() {
+        Injection injection = Injection.update(null, new InjectionInputs("entity", "jvc-1", "jvm-1", "/opt/java", "/opt/waratek/jvm-1", true, "waratek", JAVA_OPTS));
+
+        assertEquals(injection.commands.get(0), "set -x");
+        assertTrue(injection.waratekOpts.endsWith(" -verbose"), injection.waratekOpts);
+        assertEquals(injection.props.get(SshTool.PROP_USER.getName()), "waratek");
+    }
+
+}
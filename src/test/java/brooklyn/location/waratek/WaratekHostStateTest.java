@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.waratek;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the SSH command permits shared by the JVMs on a host.
+ */
+public class WaratekHostStateTest {
+
+    @Test(timeOut = 10000)
+    public void testNestedCommandsTakeOnePermit() throws Exception {
+        WaratekHostState host = new WaratekHostState(1);
+
+        host.acquireExecPermit();
+        host.acquireExecPermit();
+        assertEquals(host.getAvailableExecPermits(), 0);
+
+        host.releaseExecPermit();
+        assertEquals(host.getAvailableExecPermits(), 0);
+        host.releaseExecPermit();
+        assertEquals(host.getAvailableExecPermits(), 1);
+    }
+
+    @Test(timeOut = 10000)
+    public void testPermitsCountedPerThread() throws Exception {
+        final WaratekHostState host = new WaratekHostState(2);
+        host.acquireExecPermit();
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    host.acquireExecPermit();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+        };
+        other.start();
+        other.join();
+
+        assertEquals(host.getAvailableExecPermits(), 0);
+    }
+
+}